@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.Stage;
+import com.google.inject.name.Names;
+import com.google.inject.servlet.ServletScopes;
+import com.google.inject.util.Modules;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The moon-web injector on top of the App Engine local service stubs, shared by all benchmarks of
+ * a run.
+ *
+ * The stubs bind their environment to the thread that set them up; benchmark states running on
+ * other threads call {@link #attachCurrentThread} from their own setup.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkEnvironment {
+
+  /** Directory holding the filtered config.json, flags.json and queue.xml of moon-web. */
+  public static String webinfRoot() {
+    return System.getProperty("moon.webinf", "../moon-web/src/main/webapp/WEB-INF");
+  }
+
+  private LocalServiceTestHelper helper;
+  private ApiProxy.Environment environment;
+  private Injector injector;
+
+  /** Starts the stubs and builds the injector the way {@link DefaultServletConfig} does. */
+  @Setup
+  public void setUp() {
+    setUp(new AbstractModule() {
+      @Override
+      protected void configure() {
+      }
+    });
+  }
+
+  /** Like {@link #setUp()}, with {@code overrides} replacing bindings of the root module. */
+  public void setUp(Module overrides) {
+    helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+            new LocalMemcacheServiceTestConfig(), new LocalTaskQueueTestConfig()
+                .setQueueXmlPath(webinfRoot() + "/queue.xml"));
+    helper.setUp();
+    environment = ApiProxy.getCurrentEnvironment();
+    injector =
+        Guice.createInjector(Stage.DEVELOPMENT, Modules.override(GuiceSetup.getRootModule())
+            .with(new AbstractModule() {
+              @Override
+              protected void configure() {
+                bind(String.class).annotatedWith(Names.named("webinf root")).toInstance(
+                    webinfRoot());
+              }
+            }, overrides), GuiceSetup.getServletModule());
+  }
+
+  @TearDown
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  /** Makes the local service stubs usable from the calling thread. */
+  public void attachCurrentThread() {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+  }
+
+  public Injector getInjector() {
+    return injector;
+  }
+
+  /** Runs {@code body} inside a fresh Guice request scope. */
+  public <T> T inRequest(Callable<T> body) throws Exception {
+    return ServletScopes.scopeRequest(body, Collections.<Key<?>, Object> emptyMap()).call();
+  }
+
+  /**
+   * Like {@link #inRequest(Callable)}, with {@code req} and {@code resp} injected wherever the
+   * servlet request and response are, as guice-servlet would for a request through GuiceFilter.
+   */
+  public <T> T inRequest(HttpServletRequest req, HttpServletResponse resp, Callable<T> body)
+      throws Exception {
+    return ServletScopes.scopeRequest(body, ImmutableMap.<Key<?>, Object> of(
+        Key.get(HttpServletRequest.class), req, Key.get(HttpServletResponse.class), resp)).call();
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+
+/**
+ * Runs the benchmarks and writes the results as JSON.
+ *
+ * Usage: {@code BenchmarkMain [result.json] [JMH options...]}
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    String result = args.length > 0 ? args[0] : "jmh-result.json";
+    String[] jmhArgs = Arrays.copyOfRange(args, Math.min(1, args.length), args.length);
+    Options options =
+        new OptionsBuilder().parent(new CommandLineOptions(jmhArgs)).resultFormat(
+            ResultFormatType.JSON).result(result).build();
+    new Runner(options).run();
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Minimal in-memory servlet requests and responses for driving filters and handlers outside a
+ * container. Methods that are not modelled return null, false or 0.
+ */
+public class FakeServlet {
+
+  /** Builds an {@link HttpServletRequest}. */
+  public static class RequestBuilder {
+    private String method = "GET";
+    private String uri = "/";
+    private final List<Cookie> cookies = Lists.newArrayList();
+    private final Map<String, String> headers = Maps.newLinkedHashMap();
+    private final Map<String, String> params = Maps.newLinkedHashMap();
+
+    public RequestBuilder method(String method) {
+      this.method = method;
+      return this;
+    }
+
+    public RequestBuilder uri(String uri) {
+      this.uri = uri;
+      return this;
+    }
+
+    /** Adds a cookie, visible both through getCookies() and the raw Cookie header. */
+    public RequestBuilder cookie(String name, String value) {
+      cookies.add(new Cookie(name, value));
+      StringBuilder b = new StringBuilder();
+      for (Cookie c : cookies) {
+        b.append(b.length() == 0 ? "" : "; ").append(c.getName()).append('=').append(c.getValue());
+      }
+      headers.put("Cookie", b.toString());
+      return this;
+    }
+
+    public RequestBuilder header(String name, String value) {
+      headers.put(name, value);
+      return this;
+    }
+
+    public RequestBuilder param(String name, String value) {
+      params.put(name, value);
+      return this;
+    }
+
+    public HttpServletRequest build() {
+      final Cookie[] cookieArray = cookies.isEmpty() ? null : cookies.toArray(new Cookie[0]);
+      final Map<String, Object> attributes = Maps.newHashMap();
+      return proxy(HttpServletRequest.class, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) {
+          String name = m.getName();
+          if (name.equals("getMethod")) {
+            return method;
+          } else if (name.equals("getRequestURI") || name.equals("getPathInfo")
+              || name.equals("getServletPath")) {
+            return uri;
+          } else if (name.equals("getRequestURL")) {
+            return new StringBuffer("http://localhost").append(uri);
+          } else if (name.equals("getCookies")) {
+            return cookieArray == null ? null : cookieArray.clone();
+          } else if (name.equals("getHeader")) {
+            return header((String) args[0]);
+          } else if (name.equals("getHeaders")) {
+            String value = header((String) args[0]);
+            return Collections.enumeration(value == null ? Collections.<String> emptyList()
+                : Collections.singletonList(value));
+          } else if (name.equals("getHeaderNames")) {
+            return Collections.enumeration(headers.keySet());
+          } else if (name.equals("getParameter")) {
+            return params.get(args[0]);
+          } else if (name.equals("getParameterNames")) {
+            return Collections.enumeration(params.keySet());
+          } else if (name.equals("getAttribute")) {
+            return attributes.get(args[0]);
+          } else if (name.equals("setAttribute")) {
+            attributes.put((String) args[0], args[1]);
+            return null;
+          } else if (name.equals("removeAttribute")) {
+            attributes.remove(args[0]);
+            return null;
+          } else if (name.equals("getLocale")) {
+            return Locale.SIMPLIFIED_CHINESE;
+          } else if (name.equals("getContextPath")) {
+            return "";
+          }
+          return defaultValue(m);
+        }
+      });
+    }
+
+    private String header(String name) {
+      for (Map.Entry<String, String> e : headers.entrySet()) {
+        if (e.getKey().equalsIgnoreCase(name)) {
+          return e.getValue();
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Records what a handler or filter wrote to an {@link HttpServletResponse}. */
+  public static class RecordingResponse {
+    private int status = HttpServletResponse.SC_OK;
+    private String redirect;
+    private final List<Cookie> cookies = Lists.newArrayList();
+    private final StringWriter body = new StringWriter();
+    private final HttpServletResponse response =
+        proxy(HttpServletResponse.class, new InvocationHandler() {
+          private final PrintWriter writer = new PrintWriter(body);
+
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) {
+            String name = m.getName();
+            if (name.equals("setStatus") || name.equals("sendError")) {
+              status = (Integer) args[0];
+              return null;
+            } else if (name.equals("sendRedirect")) {
+              status = HttpServletResponse.SC_FOUND;
+              redirect = (String) args[0];
+              return null;
+            } else if (name.equals("addCookie")) {
+              cookies.add((Cookie) args[0]);
+              return null;
+            } else if (name.equals("getWriter")) {
+              return writer;
+            } else if (name.equals("getStatus")) {
+              return status;
+            }
+            return defaultValue(m);
+          }
+        });
+
+    public HttpServletResponse get() {
+      return response;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    public String getRedirect() {
+      return redirect;
+    }
+
+    public List<Cookie> getCookies() {
+      return cookies;
+    }
+
+    public String getBody() {
+      return body.toString();
+    }
+  }
+
+  public static RequestBuilder request() {
+    return new RequestBuilder();
+  }
+
+  private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(FakeServlet.class.getClassLoader(),
+        new Class<?>[] {type}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (m.getDeclaringClass() == Object.class) {
+              if (m.getName().equals("equals")) {
+                return proxy == args[0];
+              } else if (m.getName().equals("hashCode")) {
+                return System.identityHashCode(proxy);
+              }
+              return "Fake" + type.getSimpleName();
+            }
+            return handler.invoke(proxy, m, args);
+          }
+        }));
+  }
+
+  private static Object defaultValue(Method m) {
+    Class<?> t = m.getReturnType();
+    if (t == boolean.class) {
+      return false;
+    } else if (t == int.class) {
+      return 0;
+    } else if (t == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  private FakeServlet() {
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Compares the string-concatenating logging the OAuth code used to do against
+ * {@link StructuredLog}, at the sample rate given by {@code rate}. The lines and bytes that reach
+ * the handler are printed after each iteration.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LoggingBenchmark {
+  private static final String URL =
+      "https://graph.qq.com/user/get_user_info?access_token=FE04B5F3A1C2D4E5F6A7B8C9D0E1CCE2"
+          + "&oauth_consumer_key=100330010&openid=9A6D2C4E8B0F1A3C5E7D9B1F3A5C7E9B";
+  private static final String TOKEN_RESPONSE =
+      "access_token=FE04B5F3A1C2D4E5F6A7B8C9D0E1CCE2&expires_in=7776000"
+          + "&refresh_token=88E4B5F3A1C2D4E5F6A7B8C9D0E1BE14";
+
+  private static class CountingHandler extends Handler {
+    long lines;
+    long bytes;
+
+    @Override
+    public void publish(LogRecord record) {
+      lines++;
+      bytes += record.getMessage().length();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  /** Fraction of INFO lines kept; what {@code log_sample_rates} sets for the category. */
+  @Param({"1", "0.1", "0"})
+  public String rate;
+
+  private final Logger legacy = Logger.getLogger(LoggingBenchmark.class.getName());
+  private final StructuredLog log = StructuredLog.get(LoggingBenchmark.class, "benchmark");
+  private final CountingHandler handler = new CountingHandler();
+  private long millis;
+
+  @Setup
+  public void setUp() {
+    legacy.setUseParentHandlers(false);
+    legacy.addHandler(handler);
+    StructuredLog.setSampleRates("benchmark=" + rate);
+  }
+
+  @TearDown(Level.Iteration)
+  public void report() {
+    System.out.println("  " + handler.lines + " lines, " + handler.bytes + " bytes logged");
+    handler.lines = 0;
+    handler.bytes = 0;
+  }
+
+  @TearDown
+  public void tearDown() {
+    legacy.removeHandler(handler);
+    legacy.setUseParentHandlers(true);
+    StructuredLog.setSampleRates("");
+  }
+
+  /** Ignores {@code rate}: every line is built and logged. */
+  @Benchmark
+  public void legacyFetch() {
+    legacy.info("Sending to " + URL + " took " + ++millis + "ms");
+  }
+
+  @Benchmark
+  public void structuredFetch() {
+    log.info("fetch", "url", URL, "millis", ++millis);
+  }
+
+  /** Ignores {@code rate}: every line is built and logged. */
+  @Benchmark
+  public void legacyTokenResponse() {
+    legacy.info("token response: " + TOKEN_RESPONSE);
+  }
+
+  @Benchmark
+  public void structuredTokenResponse() {
+    log.info("tokenResponse", "body", TOKEN_RESPONSE);
+  }
+
+  /** A disabled level, which neither builds nor redacts the line. */
+  @Benchmark
+  public void structuredFine() {
+    log.fine("tokenResponse", "body", TOKEN_RESPONSE);
+  }
+}
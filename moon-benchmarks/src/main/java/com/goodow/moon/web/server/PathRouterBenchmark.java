@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.common.collect.Lists;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares resolving a request path with {@link PathRouter} against testing servlet-style patterns
+ * one by one, the way guice-servlet matches {@code serve()} and {@code filter()} registrations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PathRouterBenchmark {
+
+  /** A servlet-style pattern: an exact path or a prefix followed by "/*". */
+  private static class Pattern {
+    final String pattern;
+    final boolean prefix;
+    final String target;
+
+    Pattern(String pattern, String target) {
+      this.prefix = pattern.endsWith("/*");
+      this.pattern = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+      this.target = target;
+    }
+
+    boolean matches(String path) {
+      return prefix ? path.startsWith(pattern) : path.equals(pattern);
+    }
+  }
+
+  @Param({"300"})
+  int routes;
+
+  private PathRouter<String, String> router;
+  private final List<Pattern> servlets = Lists.newArrayList();
+  private final List<Pattern> filters = Lists.newArrayList();
+  private String[] paths;
+
+  @Setup
+  public void setUp() {
+    PathRouter.Builder<String, String> builder = PathRouter.builder();
+    for (int i = 0; i < routes; i++) {
+      String handler = "handler" + i;
+      if (i % 10 == 0) {
+        builder.prefix("/files" + i, handler);
+        servlets.add(new Pattern("/files" + i + "/*", handler));
+      } else {
+        builder.exact("/api/resource" + i, handler);
+        servlets.add(new Pattern("/api/resource" + i, handler));
+      }
+      if (i % 5 == 0) {
+        builder.filter("/api/resource" + i, "filter" + i);
+        filters.add(new Pattern("/api/resource" + i, "filter" + i));
+      }
+    }
+    builder.filter("/files0/*", "filesFilter");
+    filters.add(new Pattern("/files0/*", "filesFilter"));
+    router = builder.build();
+
+    paths =
+        new String[] {"/api/resource1", "/api/resource" + (routes - 1),
+            "/files" + (routes / 20 * 10) + "/a/b/c.png", "/api/resource" + routes, "/unknown"};
+  }
+
+  @Benchmark
+  public void trieLookup(Blackhole bh) {
+    for (String path : paths) {
+      bh.consume(router.lookup(path));
+    }
+  }
+
+  @Benchmark
+  public void patternScan(Blackhole bh) {
+    for (String path : paths) {
+      for (Pattern filter : filters) {
+        if (filter.matches(path)) {
+          bh.consume(filter.target);
+        }
+      }
+      for (Pattern servlet : servlets) {
+        if (servlet.matches(path)) {
+          bh.consume(servlet.target);
+          break;
+        }
+      }
+    }
+  }
+}
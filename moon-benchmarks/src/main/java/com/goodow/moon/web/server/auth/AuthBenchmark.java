@@ -0,0 +1,213 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.BenchmarkEnvironment;
+import com.goodow.moon.web.server.FakeServlet;
+
+import com.google.inject.Injector;
+import com.google.walkaround.wave.server.auth.AccountStore;
+import com.google.walkaround.wave.server.auth.OAuthCredentials;
+import com.google.walkaround.wave.server.auth.StableUserId;
+import com.google.walkaround.wave.server.auth.XsrfHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Benchmarks the per-request authentication path: {@link TokenBasedAccountLookup#isUserLoggedIn}
+ * with each way of presenting a token, credential extraction, the XSRF check underneath it, the
+ * OAuth URL helpers, and {@link AdminAuthFilter} for an admin and a non-admin. Run with
+ * {@code -prof gc} to compare allocations per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AuthBenchmark {
+  private static final String USER_ID = "gbenchmark";
+  private static final String ACCESS_TOKEN = "ya29.benchmark-access-token";
+  private static final ParticipantId ADMIN = ParticipantId.ofUnsafe("benchmark@goodow.com");
+  private static final ParticipantId NON_ADMIN = ParticipantId.ofUnsafe("benchmark@example.com");
+  private static final FilterChain NO_OP_CHAIN = new FilterChain() {
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) {
+    }
+  };
+  private static final String QQ_TOKEN_RESPONSE =
+      "access_token=FE04************************CCE2&expires_in=7776000"
+          + "&refresh_token=88E4************************BE14";
+
+  private BenchmarkEnvironment env;
+  private Injector injector;
+  private XsrfHelper xsrfHelper;
+  private OAuthProvider.Helper oAuthHelper;
+  private String token;
+  private HttpServletRequest cookieRequest;
+  private HttpServletRequest bearerRequest;
+  private HttpServletRequest queryParamRequest;
+  private HttpServletRequest sessionTokenRequest;
+  private HttpServletRequest adminRequest;
+
+  @Setup
+  public void setUp(BenchmarkEnvironment env) throws Exception {
+    this.env = env;
+    env.attachCurrentThread();
+    injector = env.getInjector();
+    xsrfHelper = injector.getInstance(XsrfHelper.class);
+    oAuthHelper = injector.getInstance(OAuthProvider.Helper.class);
+    injector.getInstance(AccountStore.class).put(
+        new AccountStore.Record(new StableUserId(USER_ID), ParticipantId
+            .ofUnsafe("benchmark@goodow.com"), new OAuthCredentials("refresh", ACCESS_TOKEN)));
+    token = xsrfHelper.createToken(ACCESS_TOKEN);
+
+    cookieRequest =
+        FakeServlet.request().uri("/robot/dataapi").cookie(TokenBasedAccountLookup.USER_ID_KEY,
+            USER_ID).cookie(TokenBasedAccountLookup.TOKEN_COOKIE_KEY, token).build();
+    bearerRequest =
+        FakeServlet.request().uri("/robot/dataapi").header(TokenBasedAccountLookup.USER_ID_KEY,
+            USER_ID).header("Authorization", "Bearer " + token).build();
+    String sessionToken =
+        injector.getInstance(SessionTokenCodec.class).mint(new StableUserId(USER_ID),
+            ParticipantId.ofUnsafe("benchmark@goodow.com"), System.currentTimeMillis()
+                + TimeUnit.DAYS.toMillis(1));
+    sessionTokenRequest =
+        FakeServlet.request().uri("/robot/dataapi").cookie(TokenBasedAccountLookup.USER_ID_KEY,
+            USER_ID).cookie(TokenBasedAccountLookup.TOKEN_COOKIE_KEY, sessionToken).build();
+    queryParamRequest =
+        FakeServlet.request().uri("/robot/dataapi").param(TokenBasedAccountLookup.USER_ID_KEY,
+            USER_ID).param("access_token", token).build();
+    adminRequest = FakeServlet.request().uri("/admin/config").build();
+  }
+
+  @Benchmark
+  public boolean isUserLoggedInCookie() throws Exception {
+    return isUserLoggedIn(cookieRequest);
+  }
+
+  @Benchmark
+  public boolean isUserLoggedInBearerHeader() throws Exception {
+    return isUserLoggedIn(bearerRequest);
+  }
+
+  @Benchmark
+  public boolean isUserLoggedInQueryParam() throws Exception {
+    return isUserLoggedIn(queryParamRequest);
+  }
+
+  @Benchmark
+  public boolean isUserLoggedInSessionToken() throws Exception {
+    return isUserLoggedIn(sessionTokenRequest);
+  }
+
+  /** Credential extraction before the single-pass Cookie header parser. */
+  @Benchmark
+  public String legacyCookieCredentials() {
+    String userId = legacyGetCookie(cookieRequest, TokenBasedAccountLookup.USER_ID_KEY);
+    String token = legacyGetCookie(cookieRequest, TokenBasedAccountLookup.TOKEN_COOKIE_KEY);
+    return userId + token;
+  }
+
+  @Benchmark
+  public Credentials cookieCredentials() {
+    return Credentials.extract(cookieRequest);
+  }
+
+  @Benchmark
+  public Credentials bearerCredentials() {
+    return Credentials.extract(bearerRequest);
+  }
+
+  @Benchmark
+  public String xsrfVerify() throws Exception {
+    xsrfHelper.verify(ACCESS_TOKEN, token);
+    return token;
+  }
+
+  @Benchmark
+  public String authorizationEndpointUrl() {
+    return oAuthHelper.getAuthorizationEndpointUrl("qq", "state");
+  }
+
+  @Benchmark
+  public Map<String, String> qqParameterMap() {
+    return QqOAuthProvider.parameterMap(QQ_TOKEN_RESPONSE);
+  }
+
+  @Benchmark
+  public int adminAuthFilterAdmin() throws Exception {
+    return adminAuthFilter(ADMIN);
+  }
+
+  @Benchmark
+  public int adminAuthFilterNonAdmin() throws Exception {
+    return adminAuthFilter(NON_ADMIN);
+  }
+
+  private static String legacyGetCookie(HttpServletRequest req, String cookieName) {
+    Cookie[] cookies = req.getCookies();
+    if (cookies != null) {
+      for (Cookie cookie : cookies) {
+        if (cookieName.equals(cookie.getName())) {
+          return cookie.getValue();
+        }
+      }
+    }
+    return null;
+  }
+
+  /** @return the response status of an admin page request by {@code participant}. */
+  private int adminAuthFilter(final ParticipantId participant) throws Exception {
+    final FakeServlet.RecordingResponse resp = new FakeServlet.RecordingResponse();
+    return env.inRequest(new Callable<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        injector.getInstance(UserContext.class).setParticipantId(participant);
+        injector.getInstance(AdminAuthFilter.class).doFilter(adminRequest, resp.get(),
+            NO_OP_CHAIN);
+        return resp.getStatus();
+      }
+    });
+  }
+
+  private boolean isUserLoggedIn(final HttpServletRequest req) throws Exception {
+    return env.inRequest(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return injector.getInstance(TokenBasedAccountLookup.class).isUserLoggedIn(req);
+      }
+    });
+  }
+}
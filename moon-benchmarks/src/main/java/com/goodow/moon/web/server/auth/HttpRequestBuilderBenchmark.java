@@ -0,0 +1,81 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.appengine.api.urlfetch.HTTPMethod;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.common.base.Charsets;
+import com.google.common.net.UriEscapers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.MalformedURLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building a token exchange request with {@link FormEncoder} against the string
+ * concatenation {@link HttpRequestBuilder} used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HttpRequestBuilderBenchmark {
+  private static final String[][] TOKEN_EXCHANGE = {
+      {"code", "4/P7q7W91a-oMsCeLvIaQm6bTrgtp7"},
+      {"redirect_uri", "https://goodow-moon.appspot.com/authenticate"},
+      {"grant_type", "authorization_code"},
+      {"client_id", "000000000000.apps.googleusercontent.com"},
+      {"client_secret", "benchmark-client-secret"}};
+  private static final String TOKEN_ENDPOINT = "https://accounts.google.com/o/oauth2/token";
+
+  @Benchmark
+  public byte[] legacyPayload() {
+    StringBuilder contentBuilder = new StringBuilder();
+    for (String[] kv : TOKEN_EXCHANGE) {
+      contentBuilder.append(kv[0] + "=" + UriEscapers.uriQueryStringEscaper(false).escape(kv[1])
+          + "&");
+    }
+    return contentBuilder.toString().getBytes(Charsets.UTF_8);
+  }
+
+  @Benchmark
+  public byte[] formEncoderPayload() {
+    FormEncoder encoder = new FormEncoder();
+    for (String[] kv : TOKEN_EXCHANGE) {
+      encoder.add(kv[0], kv[1]);
+    }
+    return encoder.toByteArray();
+  }
+
+  @Benchmark
+  public HTTPRequest builderRequest() throws MalformedURLException {
+    HttpRequestBuilder req =
+        new HttpRequestBuilder(null, null, new OutboundBreakers(5000, 20, 5, 30000));
+    for (String[] kv : TOKEN_EXCHANGE) {
+      req.postParam(kv[0], kv[1]);
+    }
+    return req.getRequest(TOKEN_ENDPOINT, HTTPMethod.POST);
+  }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.BenchmarkEnvironment;
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+import com.goodow.moon.web.server.FakeServlet;
+
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Replays concurrent login sessions against the App Engine local service stubs, with
+ * {@link OAuthProviderSimulator} standing in for Google and QQ. Each session renders the
+ * {@link LoginHandler} page, comes back to {@link OAuthCallbackHandler} with the authorization
+ * code of its simulated user, and makes an RPC with the cookies it got, through
+ * {@link RpcAuthFilter}. Prints throughput and p50/p99 latency per stage, and what the simulated
+ * providers were asked for.
+ *
+ * Configured with system properties:
+ * <ul>
+ * <li>{@code sessions}: number of sessions, default 2000
+ * <li>{@code concurrency}: sessions in flight at once, default 200
+ * <li>{@code provider}: google, qq, or mix to alternate, default mix
+ * <li>{@code sim}: {@code median:p99:errorRate} of every provider endpoint, default 80:400:0.01
+ * <li>{@code sim.<endpoint>}: the same for one of {@link OAuthProviderSimulator#ENDPOINTS}
+ * <li>{@code outbound.maxConcurrent}: overrides outbound_max_concurrent in config.json, whose
+ * bulkhead otherwise turns away the calls above it
+ * </ul>
+ */
+public class LoginLoadTest {
+
+  /** Latencies and failures of one stage of the sessions. */
+  private static class Stage {
+    final String name;
+    final ConcurrentLinkedQueue<Long> nanos = new ConcurrentLinkedQueue<Long>();
+    final AtomicLong errors = new AtomicLong();
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    void report(long wallNanos) {
+      long[] sorted = new long[nanos.size()];
+      int i = 0;
+      for (Long n : nanos) {
+        sorted[i++] = n;
+      }
+      Arrays.sort(sorted);
+      System.out.println(String.format("%-9s %7d ok %6d failed %9.1f/s   p50 %8.2fms   p99 %8.2fms",
+          name, sorted.length, errors.get(), sorted.length * 1e9 / wallNanos,
+          percentileMillis(sorted, 50), percentileMillis(sorted, 99)));
+    }
+
+    private static double percentileMillis(long[] sorted, int percentile) {
+      return sorted.length == 0 ? 0 : sorted[(sorted.length - 1) * percentile / 100] / 1e6;
+    }
+  }
+
+  private final BenchmarkEnvironment env = new BenchmarkEnvironment();
+  private final OAuthProviderSimulator simulator;
+  private final String provider;
+  private final Stage login = new Stage("login");
+  private final Stage callback = new Stage("callback");
+  private final Stage rpc = new Stage("rpc");
+  private Injector injector;
+
+  LoginLoadTest(OAuthProviderSimulator simulator, String provider) {
+    this.simulator = simulator;
+    this.provider = provider;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int sessions = Integer.getInteger("sessions", 2000);
+    int concurrency = Integer.getInteger("concurrency", 200);
+    OAuthProviderSimulator simulator =
+        new OAuthProviderSimulator(OAuthProviderSimulator.Behavior.parse(System.getProperty(
+            "sim", "80:400:0.01")));
+    for (String endpoint : OAuthProviderSimulator.ENDPOINTS) {
+      String spec = System.getProperty("sim." + endpoint);
+      if (spec != null) {
+        simulator.behavior(endpoint, OAuthProviderSimulator.Behavior.parse(spec));
+      }
+    }
+    LoginLoadTest test = new LoginLoadTest(simulator, System.getProperty("provider", "mix"));
+    test.setUp(Integer.getInteger("outbound.maxConcurrent"));
+    try {
+      test.run(sessions, concurrency);
+    } finally {
+      test.env.tearDown();
+    }
+    // The local service stubs leave non-daemon threads behind.
+    System.exit(0);
+  }
+
+  void setUp(final Integer maxConcurrent) {
+    final URLFetchService fetchService = simulator.asUrlFetchService();
+    env.setUp(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(URLFetchService.class).toInstance(fetchService);
+      }
+
+      @Provides
+      @Singleton
+      OutboundBreakers provideOutboundBreakers(
+          @Config(ConfigName.OUTBOUND_DEADLINE_MILLIS) int deadlineMillis,
+          @Config(ConfigName.OUTBOUND_MAX_CONCURRENT) int configMaxConcurrent,
+          @Config(ConfigName.OUTBOUND_BREAKER_FAILURES) int failureThreshold,
+          @Config(ConfigName.OUTBOUND_BREAKER_OPEN_MILLIS) int openMillis) {
+        return new OutboundBreakers(deadlineMillis, maxConcurrent == null ? configMaxConcurrent
+            : maxConcurrent, failureThreshold, openMillis);
+      }
+    });
+    injector = env.getInjector();
+  }
+
+  void run(int sessions, int concurrency) throws InterruptedException {
+    for (String endpoint : OAuthProviderSimulator.ENDPOINTS) {
+      System.out.println(endpoint + ": " + simulator.getBehavior(endpoint));
+    }
+    System.out.println(sessions + " " + provider + " sessions, " + concurrency + " at a time");
+
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable r) {
+        return new Thread(new Runnable() {
+          @Override
+          public void run() {
+            env.attachCurrentThread();
+            r.run();
+          }
+        });
+      }
+    });
+    final CountDownLatch done = new CountDownLatch(sessions);
+    final AtomicLong completed = new AtomicLong();
+    long start = System.nanoTime();
+    for (int i = 0; i < sessions; i++) {
+      final int user = i;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            if (session(user)) {
+              completed.incrementAndGet();
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+    done.await();
+    long wallNanos = System.nanoTime() - start;
+    executor.shutdown();
+
+    System.out.println(String.format("%d of %d sessions completed in %.1fs, %.1f sessions/s",
+        completed.get(), sessions, wallNanos / 1e9, completed.get() * 1e9 / wallNanos));
+    login.report(wallNanos);
+    callback.report(wallNanos);
+    rpc.report(wallNanos);
+    for (String endpoint : OAuthProviderSimulator.ENDPOINTS) {
+      System.out.println(String.format("%-16s %7d calls %6d failed", endpoint, simulator
+          .getCalls(endpoint), simulator.getFailures(endpoint)));
+    }
+  }
+
+  /** @return whether all stages of the session succeeded. */
+  private boolean session(int user) {
+    String providerName = !provider.equals("mix") ? provider : user % 2 == 0 ? "google" : "qq";
+
+    final FakeServlet.RecordingResponse page = new FakeServlet.RecordingResponse();
+    final HttpServletRequest loginReq =
+        FakeServlet.request().uri("/login").param("originalRequest", "/").build();
+    if (!time(login, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return inRequest(loginReq, page, new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            injector.getInstance(LoginHandler.class).doGet(loginReq, page.get());
+            return page.getStatus() == 200;
+          }
+        });
+      }
+    })) {
+      return false;
+    }
+    String state = state(page.getBody(), providerName);
+    if (state == null) {
+      login.errors.incrementAndGet();
+      return false;
+    }
+
+    final FakeServlet.RecordingResponse cookies = new FakeServlet.RecordingResponse();
+    final HttpServletRequest callbackReq =
+        FakeServlet.request().uri("/authenticate").param("code",
+            OAuthProviderSimulator.codeFor(user)).param("state", state).build();
+    if (!time(callback, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return inRequest(callbackReq, cookies, new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws IOException {
+            injector.getInstance(OAuthCallbackHandler.class).doGet(callbackReq, cookies.get());
+            return cookie(cookies, TokenBasedAccountLookup.TOKEN_COOKIE_KEY) != null;
+          }
+        });
+      }
+    })) {
+      return false;
+    }
+
+    final FakeServlet.RecordingResponse rpcResp = new FakeServlet.RecordingResponse();
+    final HttpServletRequest rpcReq =
+        FakeServlet.request().method("POST").uri("/robot/dataapi").cookie(
+            TokenBasedAccountLookup.USER_ID_KEY,
+            cookie(cookies, TokenBasedAccountLookup.USER_ID_KEY)).cookie(
+            TokenBasedAccountLookup.TOKEN_COOKIE_KEY,
+            cookie(cookies, TokenBasedAccountLookup.TOKEN_COOKIE_KEY)).build();
+    return time(rpc, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return inRequest(rpcReq, rpcResp, new Callable<Boolean>() {
+          @Override
+          public Boolean call() throws Exception {
+            final AtomicBoolean authenticated = new AtomicBoolean();
+            injector.getInstance(RpcAuthFilter.class).doFilter(rpcReq, rpcResp.get(),
+                new FilterChain() {
+                  @Override
+                  public void doFilter(ServletRequest request, ServletResponse response) {
+                    authenticated.set(true);
+                  }
+                });
+            return authenticated.get();
+          }
+        });
+      }
+    });
+  }
+
+  private boolean inRequest(HttpServletRequest req, FakeServlet.RecordingResponse resp,
+      Callable<Boolean> body) throws Exception {
+    return env.inRequest(req, resp.get(), body);
+  }
+
+  /** Runs {@code stage} and records its latency if it succeeds, or a failure. */
+  private static boolean time(Stage stage, Callable<Boolean> body) {
+    long start = System.nanoTime();
+    boolean ok;
+    try {
+      ok = body.call();
+    } catch (Exception e) {
+      ok = false;
+    }
+    if (ok) {
+      stage.nanos.add(System.nanoTime() - start);
+    } else {
+      stage.errors.incrementAndGet();
+    }
+    return ok;
+  }
+
+  /**
+   * @return the decoded state parameter of the authorization URL for {@code providerName} on the
+   *         login page, or null if there is none
+   */
+  private static String state(String page, String providerName) {
+    int start = page.indexOf("state=" + providerName);
+    if (start < 0) {
+      return null;
+    }
+    start += "state=".length();
+    int end = start;
+    while (end < page.length() && "&'\"".indexOf(page.charAt(end)) < 0) {
+      end++;
+    }
+    try {
+      return URLDecoder.decode(page.substring(start, end), "UTF-8");
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static String cookie(FakeServlet.RecordingResponse resp, String name) {
+    for (Cookie c : resp.getCookies()) {
+      if (c.getName().equals(name)) {
+        return c.getValue();
+      }
+    }
+    return null;
+  }
+}
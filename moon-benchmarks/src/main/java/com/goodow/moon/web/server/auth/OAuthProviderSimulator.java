@@ -0,0 +1,329 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the Google and QQ OAuth endpoints moon-web calls, served through a
+ * fake {@link URLFetchService}: the token endpoints of both providers, QQ's {@code /moc2/me} and
+ * {@code /user/get_info}, and Google's {@code oauth2/v1/userinfo}.
+ *
+ * Simulated user {@code n} authorizes with {@link #codeFor}{@code (n)}; the tokens and ids handed
+ * out for it are derived from {@code n}, so no state is kept between calls. Each endpoint answers
+ * after a log-normally distributed latency and fails at its own error rate, half of the failures
+ * as timeouts and half as 503 responses. Asynchronous fetches complete on a timer instead of
+ * holding a thread for the latency.
+ */
+public class OAuthProviderSimulator {
+
+  /** Latency and error rate of one endpoint. */
+  public static class Behavior {
+    private final double medianMillis;
+    private final double sigma;
+    private final double errorRate;
+
+    /**
+     * @param medianMillis median latency
+     * @param p99Millis 99th percentile latency, at least the median
+     * @param errorRate fraction of calls that fail
+     */
+    public Behavior(double medianMillis, double p99Millis, double errorRate) {
+      this.medianMillis = medianMillis;
+      this.sigma = medianMillis <= 0 ? 0 : Math.log(p99Millis / medianMillis) / Z_99;
+      this.errorRate = errorRate;
+    }
+
+    /** Parses {@code median:p99:errorRate}, e.g. "80:400:0.01". */
+    public static Behavior parse(String spec) {
+      String[] parts = spec.split(":");
+      if (parts.length != 3) {
+        throw new IllegalArgumentException("Expected median:p99:errorRate, got " + spec);
+      }
+      return new Behavior(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+          Double.parseDouble(parts[2]));
+    }
+
+    long sampleMillis(Random random) {
+      return Math.round(medianMillis * Math.exp(sigma * random.nextGaussian()));
+    }
+
+    @Override
+    public String toString() {
+      return "median " + medianMillis + "ms, p99 "
+          + Math.round(medianMillis * Math.exp(sigma * Z_99)) + "ms, errors " + errorRate;
+    }
+  }
+
+  /** Endpoint names, for {@link #behavior} and {@link #getCalls}. */
+  public static final String GOOGLE_TOKEN = "google-token";
+  public static final String GOOGLE_USERINFO = "google-userinfo";
+  public static final String QQ_TOKEN = "qq-token";
+  public static final String QQ_ME = "qq-me";
+  public static final String QQ_GET_INFO = "qq-get_info";
+  public static final List<String> ENDPOINTS = ImmutableList.of(GOOGLE_TOKEN, GOOGLE_USERINFO,
+      QQ_TOKEN, QQ_ME, QQ_GET_INFO);
+
+  /** Standard normal quantile of the 99th percentile. */
+  private static final double Z_99 = 2.3263;
+  private static final String CODE_PREFIX = "simcode-";
+  private static final String TOKEN_PREFIX = "simtoken-";
+  private static final String REFRESH_PREFIX = "simrefresh-";
+  private static final Map<String, String> ENDPOINT_PATHS = ImmutableMap.of(
+      "accounts.google.com/o/oauth2/token", GOOGLE_TOKEN,
+      "www.googleapis.com/oauth2/v1/userinfo", GOOGLE_USERINFO,
+      "graph.qq.com/oauth2.0/token", QQ_TOKEN,
+      "graph.z.qq.com/moc2/me", QQ_ME,
+      "graph.qq.com/user/get_info", QQ_GET_INFO);
+
+  /** @return the authorization code the providers hand out to simulated user {@code user}. */
+  public static String codeFor(int user) {
+    return CODE_PREFIX + user;
+  }
+
+  private final Map<String, Behavior> behaviors = Maps.newHashMap();
+  private final ConcurrentMap<String, AtomicLong> calls = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, AtomicLong> failures = Maps.newConcurrentMap();
+  private final Random random = new Random(42);
+  private final ScheduledExecutorService timer =
+      Executors.newScheduledThreadPool(4, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "oauth-simulator");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+  /** Every endpoint behaves as {@code defaults} until {@link #behavior} says otherwise. */
+  public OAuthProviderSimulator(Behavior defaults) {
+    for (String endpoint : ENDPOINTS) {
+      behaviors.put(endpoint, defaults);
+      calls.put(endpoint, new AtomicLong());
+      failures.put(endpoint, new AtomicLong());
+    }
+  }
+
+  /** Sets how {@code endpoint}, one of {@link #ENDPOINTS}, behaves. */
+  public OAuthProviderSimulator behavior(String endpoint, Behavior behavior) {
+    if (!behaviors.containsKey(endpoint)) {
+      throw new IllegalArgumentException("Unknown endpoint " + endpoint + ", not in " + ENDPOINTS);
+    }
+    behaviors.put(endpoint, behavior);
+    return this;
+  }
+
+  public Behavior getBehavior(String endpoint) {
+    return behaviors.get(endpoint);
+  }
+
+  public long getCalls(String endpoint) {
+    return calls.get(endpoint).get();
+  }
+
+  /** @return how many calls to {@code endpoint} were made to fail. */
+  public long getFailures(String endpoint) {
+    return failures.get(endpoint).get();
+  }
+
+  /** @return a {@link URLFetchService} that serves the simulated endpoints and nothing else. */
+  public URLFetchService asUrlFetchService() {
+    return (URLFetchService) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {URLFetchService.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (args == null || args.length != 1 || !(args[0] instanceof HTTPRequest)) {
+              throw new UnsupportedOperationException(m.getName());
+            }
+            HTTPRequest req = (HTTPRequest) args[0];
+            if (m.getName().equals("fetch")) {
+              return fetch(req);
+            } else if (m.getName().equals("fetchAsync")) {
+              return fetchAsync(req);
+            }
+            throw new UnsupportedOperationException(m.getName());
+          }
+        });
+  }
+
+  /** Serves {@code req} after the endpoint's latency, on the calling thread. */
+  HTTPResponse fetch(HTTPRequest req) throws IOException {
+    String endpoint = endpoint(req.getURL());
+    Behavior behavior = behaviors.get(endpoint);
+    try {
+      Thread.sleep(behavior.sampleMillis(random));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted fetching " + req.getURL(), e);
+    }
+    return respond(endpoint, behavior, req);
+  }
+
+  /** Serves {@code req} after the endpoint's latency, without holding the calling thread. */
+  Future<HTTPResponse> fetchAsync(final HTTPRequest req) {
+    final String endpoint = endpoint(req.getURL());
+    final Behavior behavior = behaviors.get(endpoint);
+    return timer.schedule(new Callable<HTTPResponse>() {
+      @Override
+      public HTTPResponse call() throws IOException {
+        return respond(endpoint, behavior, req);
+      }
+    }, behavior.sampleMillis(random), TimeUnit.MILLISECONDS);
+  }
+
+  private String endpoint(URL url) {
+    String endpoint = ENDPOINT_PATHS.get(url.getHost() + url.getPath());
+    if (endpoint == null) {
+      throw new UnsupportedOperationException("No simulated endpoint for " + url);
+    }
+    return endpoint;
+  }
+
+  private HTTPResponse respond(String endpoint, Behavior behavior, HTTPRequest req)
+      throws IOException {
+    calls.get(endpoint).incrementAndGet();
+    double r = random.nextDouble();
+    if (r < behavior.errorRate) {
+      failures.get(endpoint).incrementAndGet();
+      if (r < behavior.errorRate / 2) {
+        throw new SocketTimeoutException("Timeout while fetching " + req.getURL());
+      }
+      return response(req, 503, "text/html", "<html>Service Unavailable</html>");
+    }
+
+    Map<String, String> params = params(req.getURL().getQuery());
+    if (req.getPayload() != null) {
+      params.putAll(params(new String(req.getPayload(), Charsets.UTF_8)));
+    }
+    if (endpoint.equals(GOOGLE_TOKEN) || endpoint.equals(QQ_TOKEN)) {
+      int user = grantedUser(params);
+      if (user < 0) {
+        return response(req, 400, OAuthProvider.EXPECTED_CONTENT_TYPE,
+            "{\"error\":\"invalid_grant\"}");
+      }
+      if (endpoint.equals(QQ_TOKEN)) {
+        return response(req, 200, "text/plain", "access_token=" + TOKEN_PREFIX + user
+            + "&expires_in=7776000&refresh_token=" + REFRESH_PREFIX + user);
+      }
+      return response(req, 200, OAuthProvider.EXPECTED_CONTENT_TYPE, "{\"access_token\":\""
+          + TOKEN_PREFIX + user + "\",\"token_type\":\"Bearer\",\"expires_in\":3600,"
+          + "\"refresh_token\":\"" + REFRESH_PREFIX + user + "\"}");
+    }
+
+    int user = tokenUser(req, params);
+    if (user < 0) {
+      return response(req, 401, OAuthProvider.EXPECTED_CONTENT_TYPE,
+          "{\"error\":\"invalid_token\"}");
+    }
+    if (endpoint.equals(GOOGLE_USERINFO)) {
+      return response(req, 200, OAuthProvider.EXPECTED_CONTENT_TYPE, "{\"id\":\""
+          + (1000000000L + user) + "\",\"email\":\"simuser" + user
+          + "@gmail.com\",\"verified_email\":true}");
+    } else if (endpoint.equals(QQ_ME)) {
+      return response(req, 200, "text/plain", "client_id=100000&openid=" + openId(user));
+    } else {
+      return response(req, 200, "text/plain", "{\"ret\":0,\"msg\":\"ok\",\"data\":{\"name\":"
+          + "\"simuser" + user + "\",\"openid\":\"" + openId(user) + "\",\"email\":\"\"}}");
+    }
+  }
+
+  private static String openId(int user) {
+    return String.format("%032X", user);
+  }
+
+  private static int grantedUser(Map<String, String> params) {
+    String code = params.get("code");
+    if (code != null) {
+      return user(code, CODE_PREFIX);
+    }
+    String refreshToken = params.get("refresh_token");
+    return refreshToken == null ? -1 : user(refreshToken, REFRESH_PREFIX);
+  }
+
+  private static int tokenUser(HTTPRequest req, Map<String, String> params) {
+    String token = params.get("access_token");
+    for (HTTPHeader h : req.getHeaders()) {
+      if (h.getName().equalsIgnoreCase("Authorization")) {
+        String value = h.getValue();
+        token = value.substring(value.indexOf(' ') + 1);
+      }
+    }
+    return token == null ? -1 : user(token, TOKEN_PREFIX);
+  }
+
+  /** @return the user {@code value} was handed out to, or -1. */
+  private static int user(String value, String prefix) {
+    if (!value.startsWith(prefix)) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(value.substring(prefix.length()));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static Map<String, String> params(String encoded) {
+    Map<String, String> params = Maps.newHashMap();
+    if (encoded == null) {
+      return params;
+    }
+    try {
+      for (String kv : encoded.split("&")) {
+        int eq = kv.indexOf('=');
+        if (eq > 0) {
+          params.put(URLDecoder.decode(kv.substring(0, eq), "UTF-8"), URLDecoder.decode(kv
+              .substring(eq + 1), "UTF-8"));
+        }
+      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return params;
+  }
+
+  private static HTTPResponse response(HTTPRequest req, int status, String contentType,
+      String body) {
+    return new HTTPResponse(status, body.getBytes(Charsets.UTF_8), req.getURL(), Collections
+        .singletonList(new HTTPHeader("Content-Type", contentType)));
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.BenchmarkEnvironment;
+
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.inject.AbstractModule;
+import com.google.inject.Injector;
+import com.google.walkaround.wave.server.auth.OAuthCredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the QQ user info through {@link QqOAuthProvider#getUserInfo} against
+ * {@link OAuthProviderSimulator}. It takes the latency of {@code /moc2/me} plus that of
+ * {@code get_info}, since the second call needs the openid the first one returns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class QqUserInfoBenchmark {
+  private static final int USER = 7;
+
+  /** Latency of both QQ endpoints, as {@code median:p99:errorRate}. */
+  @Param({"20:60:0", "100:300:0"})
+  public String latency;
+
+  private final BenchmarkEnvironment env = new BenchmarkEnvironment();
+  private Injector injector;
+  private OAuthCredentials credentials;
+
+  @Setup
+  public void setUp() {
+    final URLFetchService fetchService =
+        new OAuthProviderSimulator(OAuthProviderSimulator.Behavior.parse(latency))
+            .asUrlFetchService();
+    env.setUp(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(URLFetchService.class).toInstance(fetchService);
+      }
+    });
+    injector = env.getInjector();
+    credentials = new OAuthCredentials("simrefresh-" + USER, "simtoken-" + USER);
+  }
+
+  @TearDown
+  public void tearDown() {
+    env.tearDown();
+  }
+
+  @Benchmark
+  public Object getUserInfo() throws Exception {
+    return inRequest(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        return injector.getInstance(QqOAuthProvider.class).getUserInfo();
+      }
+    });
+  }
+
+  private Object inRequest(final Callable<Object> body) throws Exception {
+    return env.inRequest(new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        injector.getInstance(UserContext.class).setOAuthCredentials(credentials);
+        return body.call();
+      }
+    });
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.BenchmarkEnvironment;
+
+import com.google.appengine.api.urlfetch.HTTPHeader;
+import com.google.appengine.api.urlfetch.HTTPRequest;
+import com.google.appengine.api.urlfetch.HTTPResponse;
+import com.google.appengine.api.urlfetch.URLFetchService;
+import com.google.common.base.Charsets;
+import com.google.inject.AbstractModule;
+import com.google.walkaround.wave.server.auth.OAuthCredentials;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchanges authorization codes the way {@link OAuthCallbackHandler} does, against a fake QQ token
+ * endpoint that times out on a {@code failureRate} fraction of calls. The teardown prints how many
+ * exchanges needed retries and how many gave up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TokenExchangeRetryBenchmark {
+  private static final String QQ_TOKEN_RESPONSE =
+      "access_token=FE04************************CCE2&expires_in=7776000"
+          + "&refresh_token=88E4************************BE14";
+
+  @Param({"0", "0.2", "0.5"})
+  public double failureRate;
+
+  private final BenchmarkEnvironment env = new BenchmarkEnvironment();
+  private final Random random = new Random(42);
+  private OAuthProvider.Helper helper;
+  private long exchanges;
+  private long calls;
+  private long gaveUp;
+
+  @Setup
+  public void setUp() {
+    final URLFetchService endpoint = fakeTokenEndpoint();
+    env.setUp(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(URLFetchService.class).toInstance(endpoint);
+      }
+    });
+    helper = env.getInjector().getInstance(OAuthProvider.Helper.class);
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.out.println(exchanges + " exchanges, " + calls + " calls to the token endpoint, "
+        + gaveUp + " gave up");
+    env.tearDown();
+  }
+
+  @Benchmark
+  public OAuthCredentials exchange() {
+    exchanges++;
+    try {
+      return DeadlineRetry.call("Token exchange with qq",
+          new DeadlineRetry.Attempt<OAuthCredentials>() {
+            @Override
+            public OAuthCredentials run() throws IOException {
+              return helper.exchangeCodeForToken("qq", "code");
+            }
+          });
+    } catch (IOException e) {
+      gaveUp++;
+      return null;
+    }
+  }
+
+  private URLFetchService fakeTokenEndpoint() {
+    return (URLFetchService) Proxy.newProxyInstance(getClass().getClassLoader(),
+        new Class<?>[] {URLFetchService.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (!m.getName().equals("fetch") || !(args[0] instanceof HTTPRequest)) {
+              throw new UnsupportedOperationException(m.getName());
+            }
+            calls++;
+            HTTPRequest req = (HTTPRequest) args[0];
+            if (random.nextDouble() < failureRate) {
+              throw new SocketTimeoutException("Timeout while fetching " + req.getURL());
+            }
+            return new HTTPResponse(200, QQ_TOKEN_RESPONSE.getBytes(Charsets.UTF_8),
+                req.getURL(), Collections.<HTTPHeader> emptyList());
+          }
+        });
+  }
+}
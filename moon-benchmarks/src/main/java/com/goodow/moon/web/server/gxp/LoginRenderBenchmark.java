@@ -0,0 +1,68 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.gxp;
+
+import com.google.gxp.base.GxpContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks rendering the {@link Login} template, including its localized messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class LoginRenderBenchmark {
+  private static final String AUTH_URL =
+      "https://accounts.google.com/o/oauth2/auth?response_type=code&client_id=000000000000"
+          + ".apps.googleusercontent.com&state=google%20AbCdEfGh";
+  private static final String AUTH_URL_QQ =
+      "https://graph.qq.com/oauth2.0/authorize?response_type=code&client_id=100000"
+          + "&state=qq%20AbCdEfGh";
+
+  @Param({"zh_CN", "en"})
+  public String locale;
+
+  private GxpContext context;
+
+  @Setup
+  public void setUp() {
+    String[] parts = locale.split("_");
+    context = new GxpContext(new Locale(parts[0], parts.length > 1 ? parts[1] : ""));
+  }
+
+  @Benchmark
+  public int render() throws IOException {
+    StringBuilder out = new StringBuilder(8192);
+    Login.write(out, context, AUTH_URL, AUTH_URL_QQ, "/", "/favicon.ico");
+    return out.length();
+  }
+}
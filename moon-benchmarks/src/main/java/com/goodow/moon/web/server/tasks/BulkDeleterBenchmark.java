@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.goodow.moon.web.server.BenchmarkEnvironment;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an ancestor-scoped {@link BulkDeleter} job over the deltas and snapshots of one wavelet to
+ * completion against the local datastore stub, calling the batches directly instead of through the
+ * task queue, and fails if anything is left.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BulkDeleterBenchmark {
+  private static final List<String> KINDS = ImmutableList.of("WaveletDelta", "WaveletSnapshot");
+
+  @Param({"2000"})
+  public int deltas;
+
+  private BulkDeleter deleter;
+  private DatastoreService datastore;
+  private Key wavelet;
+
+  @Setup
+  public void setUp(BenchmarkEnvironment env) {
+    env.attachCurrentThread();
+    deleter = env.getInjector().getInstance(BulkDeleter.class);
+    datastore = DatastoreServiceFactory.getDatastoreService();
+  }
+
+  @Setup(Level.Invocation)
+  public void populate() {
+    wavelet = KeyFactory.createKey("Wavelet", "conv+" + System.nanoTime());
+    List<Entity> entities = Lists.newArrayList();
+    for (int i = 1; i <= deltas; i++) {
+      entities.add(new Entity("WaveletDelta", i, wavelet));
+      if (i % 100 == 0) {
+        entities.add(new Entity("WaveletSnapshot", i, wavelet));
+      }
+    }
+    datastore.put(entities);
+  }
+
+  @Benchmark
+  public long deleteWavelet() {
+    BulkDeleter.Job job = deleter.start(KINDS, wavelet);
+    while (job.running) {
+      job = deleter.deleteBatch(job.id, job.batches);
+    }
+    int left =
+        datastore.prepare(new Query(wavelet).setKeysOnly()).countEntities(
+            FetchOptions.Builder.withDefaults());
+    if (left != 0) {
+      throw new AssertionError(left + " entities left under " + wavelet);
+    }
+    return job.deleted;
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.goodow.moon.web.server.BenchmarkEnvironment;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.inject.Injector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds post-commit tasks the way walkaround does, one per commit inside the commit's transaction,
+ * through {@link PostCommitTaskInterceptor} and {@link PostCommitBatcher} into the local task
+ * queue stub: each request commits {@code commitsPerRequest} times to {@code hotObjects}
+ * conversations. At the end of each iteration the number of tasks the stub holds is printed next
+ * to the number of commits, and the iteration fails if any object got more than one task per
+ * window.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PostCommitBatcherBenchmark {
+  private static final String QUEUE = "post-commit-conv";
+  private static final String URL = "/taskqueue/postcommit";
+  /** Delay walkaround gives its post-commit tasks; see post_commit_action_interval_millis. */
+  private static final long COUNTDOWN_MILLIS = 10000;
+
+  @Param({"1", "10"})
+  public int hotObjects;
+  @Param({"20"})
+  public int commitsPerRequest;
+
+  private BenchmarkEnvironment env;
+  private Injector injector;
+  private LocalTaskQueue taskQueue;
+  private DatastoreService datastore;
+  private long commits;
+  private long iterationStartMillis;
+  private long windowMillis = 1;
+
+  @Setup
+  public void setUp(BenchmarkEnvironment env) {
+    this.env = env;
+    env.attachCurrentThread();
+    injector = env.getInjector();
+    taskQueue = LocalTaskQueueTestConfig.getLocalTaskQueue();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    PostCommitTaskInterceptor.install();
+  }
+
+  @Setup(Level.Iteration)
+  public void purge() {
+    taskQueue.flushQueue(QUEUE);
+    commits = 0;
+    iterationStartMillis = System.currentTimeMillis();
+  }
+
+  @TearDown(Level.Iteration)
+  public void report() {
+    int tasks = taskQueue.getQueueStateInfo().get(QUEUE).getCountTasks();
+    System.out.println(commits + " commits to " + hotObjects + " objects -> " + tasks + " tasks");
+    long windows =
+        (System.currentTimeMillis() + COUNTDOWN_MILLIS) / windowMillis
+            - (iterationStartMillis + COUNTDOWN_MILLIS) / windowMillis + 1;
+    if (tasks > windows * hotObjects) {
+      throw new IllegalStateException(tasks + " tasks for " + hotObjects + " objects in "
+          + windows + " windows");
+    }
+  }
+
+  @Benchmark
+  public int scheduleAndFlush() throws Exception {
+    commits += commitsPerRequest;
+    return env.inRequest(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        PostCommitBatcher batcher = injector.getInstance(PostCommitBatcher.class);
+        windowMillis = batcher.getWindowMillis();
+        batcher.begin();
+        Queue queue = QueueFactory.getQueue(QUEUE);
+        for (int i = 0; i < commitsPerRequest; i++) {
+          Transaction tx = datastore.beginTransaction();
+          queue.add(tx, TaskOptions.Builder.withUrl(URL).param("id", "conv+" + (i % hotObjects))
+              .countdownMillis(COUNTDOWN_MILLIS));
+          tx.commit();
+        }
+        return batcher.flush();
+      }
+    });
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.goodow.moon.web.server.auth.UserContext;
+
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.auth.InvalidSecurityTokenException;
+import com.google.walkaround.util.server.flags.FlagDeclaration;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.auth.XsrfHelper;
+import com.google.walkaround.wave.server.auth.XsrfHelper.XsrfTokenExpiredException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the configuration snapshot of this instance (GET) and replaces the admin overrides of
+ * config.json and flags.json (POST with {@code config}, {@code flags} and {@code token}).
+ */
+public class ConfigHandler extends AbstractHandler {
+
+  private static final String XSRF_ACTION = "admin config ";
+
+  @Inject ConfigStore configStore;
+  @Inject UserContext userContext;
+  @Inject XsrfHelper xsrfHelper;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    writeSnapshot(resp, configStore.get());
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    try {
+      xsrfHelper.verify(xsrfAction(), requireParameter(req, "token"));
+    } catch (XsrfTokenExpiredException e) {
+      throw new BadRequestException("XSRF token expired");
+    } catch (InvalidSecurityTokenException e) {
+      throw new BadRequestException("Bad XSRF token");
+    }
+    String config = emptyToNull(req.getParameter("config"));
+    String flags = emptyToNull(req.getParameter("flags"));
+    ConfigStore.Snapshot snapshot;
+    try {
+      snapshot = configStore.setOverrides(config, flags);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Bad overrides: " + e.getMessage());
+    } catch (PermanentFailure e) {
+      throw new IOException("Failed to store overrides", e);
+    }
+    writeSnapshot(resp, snapshot);
+  }
+
+  private void writeSnapshot(HttpServletResponse resp, ConfigStore.Snapshot snapshot)
+      throws IOException {
+    ConfigStore.Overrides overrides;
+    try {
+      overrides = configStore.getOverrides();
+    } catch (PermanentFailure e) {
+      throw new IOException("Failed to read overrides", e);
+    }
+    JSONObject json = new JSONObject();
+    try {
+      json.put("overridesVersion", snapshot.getOverridesVersion());
+      json.put("config", toJson(snapshot.getConfig()));
+      json.put("flags", toJson(snapshot.getFlags()));
+      json.put("configOverrides", redact(overrides.config));
+      json.put("flagsOverrides", redact(overrides.flags));
+      json.put("token", xsrfHelper.createToken(xsrfAction()));
+    } catch (JSONException e) {
+      throw new RuntimeException("Bad JSON: " + json, e);
+    }
+    resp.setStatus(200);
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().print(json.toString());
+  }
+
+  private String xsrfAction() {
+    return XSRF_ACTION + userContext.getParticipantId().getAddress();
+  }
+
+  private static JSONObject toJson(Map<FlagDeclaration, Object> values) throws JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<FlagDeclaration, Object> e : values.entrySet()) {
+      String name = e.getKey().getName();
+      json.put(name, hidden(name) ? "(hidden)" : e.getValue());
+    }
+    return json;
+  }
+
+  /** @return {@code overrides} with the secrets hidden the same way {@link #toJson} does. */
+  @Nullable
+  private static Object redact(@Nullable String overrides) throws JSONException {
+    if (overrides == null) {
+      return null;
+    }
+    JSONObject json;
+    try {
+      json = new JSONObject(overrides);
+    } catch (JSONException e) {
+      // Stored overrides were validated, but never echo what might hold a secret.
+      return "(unparseable)";
+    }
+    for (Iterator<?> it = json.keys(); it.hasNext();) {
+      String name = (String) it.next();
+      if (hidden(name)) {
+        json.put(name, "(hidden)");
+      }
+    }
+    return json;
+  }
+
+  /** Never echo secrets such as client secrets or the XSRF secret. */
+  private static boolean hidden(String name) {
+    return name.contains("secret");
+  }
+
+  private static String emptyToNull(String s) {
+    return s == null || s.trim().isEmpty() ? null : s;
+  }
+}
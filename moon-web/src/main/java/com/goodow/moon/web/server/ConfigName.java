@@ -31,6 +31,20 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 public enum ConfigName implements FlagDeclaration {
   OAUTH_CLIENT_ID_QQ(String.class),
   OAUTH_CLIENT_SECRET_QQ(String.class),
+  SESSION_CACHE_EXPIRATION_SECONDS(Integer.class),
+  REFRESHED_TOKEN_CACHE_SECONDS(Integer.class),
+  GXP_LOCALES(String.class),
+  CONFIG_RELOAD_SECONDS(Integer.class),
+  USE_SESSION_TOKENS(Boolean.class),
+  POST_COMMIT_BATCH_WINDOW_MILLIS(Integer.class),
+  BULK_DELETE_WRITE_QPS(Integer.class),
+  OUTBOUND_DEADLINE_MILLIS(Integer.class),
+  OUTBOUND_MAX_CONCURRENT(Integer.class),
+  OUTBOUND_BREAKER_FAILURES(Integer.class),
+  OUTBOUND_BREAKER_OPEN_MILLIS(Integer.class),
+  LOG_SAMPLE_RATES(String.class),
+  ADMIN_DOMAINS(String.class),
+  ADMIN_PARTICIPANTS(String.class),
   ;
 
   @BindingAnnotation @Target({ FIELD, PARAMETER, METHOD }) @Retention(RUNTIME)
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.Util;
+import com.google.walkaround.util.server.appengine.CheckedDatastore;
+import com.google.walkaround.util.server.appengine.CheckedDatastore.CheckedTransaction;
+import com.google.walkaround.util.server.appengine.MemcacheTable;
+import com.google.walkaround.util.server.flags.FlagDeclaration;
+import com.google.walkaround.util.server.flags.FlagFormatException;
+import com.google.walkaround.util.server.flags.JsonFlags;
+import com.google.walkaround.wave.server.FlagName;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Holds the parsed contents of config.json and flags.json as one immutable {@link Snapshot},
+ * built once per instance and read with a single volatile load.
+ *
+ * Admins can override individual entries of either file through {@link #setOverrides}. The
+ * overrides are stored in the datastore and cached in memcache; when
+ * {@code config_reload_seconds} is positive, each instance checks for a new version at most that
+ * often and swaps in a rebuilt snapshot. Singletons that were injected with a flag value keep the
+ * value they were built with.
+ */
+@Singleton
+public class ConfigStore {
+
+  /** Immutable view of both configuration files with the overrides applied. */
+  public static final class Snapshot {
+    private final ImmutableMap<FlagDeclaration, Object> config;
+    private final ImmutableMap<FlagDeclaration, Object> flags;
+    private final long overridesVersion;
+
+    Snapshot(ImmutableMap<FlagDeclaration, Object> config,
+        ImmutableMap<FlagDeclaration, Object> flags, long overridesVersion) {
+      this.config = config;
+      this.flags = flags;
+      this.overridesVersion = overridesVersion;
+    }
+
+    /** Values of config.json, keyed by {@link ConfigName}. */
+    public ImmutableMap<FlagDeclaration, Object> getConfig() {
+      return config;
+    }
+
+    /** Values of flags.json, keyed by {@link FlagName}. */
+    public ImmutableMap<FlagDeclaration, Object> getFlags() {
+      return flags;
+    }
+
+    /** Version of the overrides applied, 0 if none. */
+    public long getOverridesVersion() {
+      return overridesVersion;
+    }
+  }
+
+  /** Admin overrides as stored in the datastore and memcache. */
+  static class Overrides implements Serializable {
+    private static final long serialVersionUID = 1L;
+    static final Overrides NONE = new Overrides(0, null, null);
+
+    final long version;
+    /** JSON object with entries overriding config.json, or null. */
+    @Nullable final String config;
+    /** JSON object with entries overriding flags.json, or null. */
+    @Nullable final String flags;
+
+    Overrides(long version, @Nullable String config, @Nullable String flags) {
+      this.version = version;
+      this.config = config;
+      this.flags = flags;
+    }
+  }
+
+  private static final Logger log = Logger.getLogger(ConfigStore.class.getName());
+
+  private static final List<ConfigName> CONFIG_DECLARATIONS = Arrays.asList(ConfigName.values());
+  private static final List<FlagName> FLAG_DECLARATIONS = Arrays.asList(FlagName.values());
+
+  private static final String OVERRIDES_KIND = "MoonConfigOverrides";
+  private static final String OVERRIDES_KEY = "current";
+  private static final String MEMCACHE_TAG = "ConfigOverrides";
+  private static final int MEMCACHE_EXPIRATION_SECONDS = 3600;
+
+  private static ImmutableMap<FlagDeclaration, Object> parse(
+      List<? extends FlagDeclaration> declarations, String json, @Nullable String overrides)
+      throws FlagFormatException {
+    if (overrides != null) {
+      try {
+        JSONObject merged = new JSONObject(json);
+        JSONObject override = new JSONObject(overrides);
+        for (Iterator<?> it = override.keys(); it.hasNext();) {
+          String key = (String) it.next();
+          merged.put(key, override.get(key));
+        }
+        json = merged.toString();
+      } catch (JSONException e) {
+        throw new IllegalArgumentException("Bad override JSON: " + overrides, e);
+      }
+    }
+    return ImmutableMap.copyOf(JsonFlags.parse(declarations, json));
+  }
+
+  private final String configJson;
+  private final String flagsJson;
+  private final MemcacheTable<String, Overrides> memcache;
+  private final CheckedDatastore datastore;
+  private final AtomicBoolean checking = new AtomicBoolean();
+  private volatile Snapshot current;
+  private volatile long nextCheckMillis;
+
+  @Inject
+  ConfigStore(@Named("webinf root") String webinfRoot, MemcacheTable.Factory memcacheFactory,
+      CheckedDatastore datastore) throws FlagFormatException {
+    this.configJson = Util.slurpRequired(webinfRoot + "/config.json");
+    this.flagsJson = Util.slurpRequired(webinfRoot + "/flags.json");
+    this.memcache = memcacheFactory.create(MEMCACHE_TAG);
+    this.datastore = datastore;
+    this.current = build(Overrides.NONE);
+  }
+
+  /**
+   * @return the current snapshot. Costs a volatile load, except for one caller per reload
+   *         interval that checks memcache for new overrides first.
+   */
+  public Snapshot get() {
+    if (System.currentTimeMillis() >= nextCheckMillis && checking.compareAndSet(false, true)) {
+      try {
+        checkForOverrides();
+      } finally {
+        checking.set(false);
+      }
+    }
+    return current;
+  }
+
+  /** @return the overrides currently applied. */
+  Overrides getOverrides() throws PermanentFailure {
+    return loadOverrides();
+  }
+
+  /**
+   * Validates and stores new overrides, and applies them on this instance immediately.
+   *
+   * @throws IllegalArgumentException if the overrides are not JSON objects or do not parse as
+   *         flags.
+   */
+  public Snapshot setOverrides(@Nullable final String config, @Nullable final String flags)
+      throws PermanentFailure {
+    try {
+      build(new Overrides(0, config, flags));
+    } catch (FlagFormatException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+
+    final Key key = KeyFactory.createKey(OVERRIDES_KIND, OVERRIDES_KEY);
+    Overrides overrides = new RetryHelper().run(new RetryHelper.Body<Overrides>() {
+      @Override
+      public Overrides run() throws RetryableFailure, PermanentFailure {
+        CheckedTransaction tx = datastore.beginTransaction();
+        try {
+          Entity existing = tx.get(key);
+          long version = existing == null ? 1 : (Long) existing.getProperty("version") + 1;
+          Entity entity = new Entity(key);
+          entity.setUnindexedProperty("version", version);
+          entity.setUnindexedProperty("config", config == null ? null : new Text(config));
+          entity.setUnindexedProperty("flags", flags == null ? null : new Text(flags));
+          tx.put(entity);
+          tx.commit();
+          return new Overrides(version, config, flags);
+        } finally {
+          tx.close();
+        }
+      }
+    });
+    memcache.put(OVERRIDES_KEY, overrides, Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECONDS),
+        SetPolicy.SET_ALWAYS);
+    apply(overrides);
+    return current;
+  }
+
+  private void checkForOverrides() {
+    Object seconds = current.getConfig().get(ConfigName.CONFIG_RELOAD_SECONDS);
+    int reloadSeconds = seconds == null ? 0 : (Integer) seconds;
+    if (reloadSeconds <= 0) {
+      nextCheckMillis = Long.MAX_VALUE;
+      return;
+    }
+    nextCheckMillis = System.currentTimeMillis() + reloadSeconds * 1000L;
+    try {
+      Overrides overrides = loadOverrides();
+      if (overrides.version != current.getOverridesVersion()) {
+        apply(overrides);
+      }
+    } catch (PermanentFailure e) {
+      log.log(Level.WARNING, "Failed to check for configuration overrides", e);
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Failed to check for configuration overrides", e);
+    }
+  }
+
+  private Overrides loadOverrides() throws PermanentFailure {
+    Overrides overrides = memcache.get(OVERRIDES_KEY);
+    if (overrides != null) {
+      return overrides;
+    }
+    Entity entity = new RetryHelper().run(new RetryHelper.Body<Entity>() {
+      @Override
+      public Entity run() throws RetryableFailure, PermanentFailure {
+        CheckedTransaction tx = datastore.beginTransaction();
+        try {
+          return tx.get(KeyFactory.createKey(OVERRIDES_KIND, OVERRIDES_KEY));
+        } finally {
+          tx.close();
+        }
+      }
+    });
+    overrides =
+        entity == null ? Overrides.NONE : new Overrides((Long) entity.getProperty("version"),
+            getText(entity, "config"), getText(entity, "flags"));
+    memcache.put(OVERRIDES_KEY, overrides, Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECONDS),
+        SetPolicy.SET_ALWAYS);
+    return overrides;
+  }
+
+  private synchronized void apply(Overrides overrides) {
+    if (overrides.version < current.getOverridesVersion()) {
+      return;
+    }
+    try {
+      current = build(overrides);
+      log.info("Applied configuration overrides version " + overrides.version);
+    } catch (FlagFormatException e) {
+      log.log(Level.SEVERE, "Ignoring bad configuration overrides version " + overrides.version, e);
+    } catch (IllegalArgumentException e) {
+      log.log(Level.SEVERE, "Ignoring bad configuration overrides version " + overrides.version, e);
+    }
+  }
+
+  private Snapshot build(Overrides overrides) throws FlagFormatException {
+    return new Snapshot(parse(CONFIG_DECLARATIONS, configJson, overrides.config), parse(
+        FLAG_DECLARATIONS, flagsJson, overrides.flags), overrides.version);
+  }
+
+  @Nullable
+  private static String getText(Entity entity, String property) {
+    Text text = (Text) entity.getProperty(property);
+    return text == null ? null : text.getValue();
+  }
+}
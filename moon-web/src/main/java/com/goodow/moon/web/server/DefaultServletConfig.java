@@ -13,24 +13,47 @@
  */
 package com.goodow.moon.web.server;
 
+import com.goodow.moon.web.server.stats.RequestStatsFilter;
+
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Stage;
 import com.google.inject.servlet.GuiceServletContextListener;
 import com.google.walkaround.wave.server.DefaultModule;
 
+import java.util.logging.Logger;
+
 public class DefaultServletConfig extends GuiceServletContextListener {
+  /**
+   * System property (see appengine-web.xml) naming the {@link Stage} of the injector. Defaults to
+   * {@link Stage#DEVELOPMENT}.
+   */
+  public static final String INJECTOR_STAGE_PROPERTY = "moon.injector.stage";
+
+  private static final Logger log = Logger.getLogger(DefaultServletConfig.class.getName());
+
   static {
     com.google.walkaround.wave.server.GuiceSetup.addExtraModule(new DefaultModule());
+    GuiceSetup.addExtraFilter(new RequestStatsFilter());
+  }
+
+  static Stage getInjectorStage() {
+    return Stage.valueOf(System.getProperty(INJECTOR_STAGE_PROPERTY, Stage.DEVELOPMENT.name()));
   }
 
   @Override
   protected Injector getInjector() {
-    return Guice.createInjector(
-    // We use Stage.DEVELOPMENT to make start-up faster on App Engine. We
-    // have a test (GuiceSetupTest) that uses Stage.PRODUCTION to find
-    // errors. TODO(ohler): Find out if Stage.PRODUCTION combined with
-    // warmup requests is better.
-        Stage.DEVELOPMENT, GuiceSetup.getRootModule(), GuiceSetup.getServletModule());
+    // Stage.DEVELOPMENT makes start-up faster on App Engine, since singletons
+    // are only built when first used. Stage.PRODUCTION builds them all up
+    // front; combined with WarmupHandler that cost moves out of user-facing
+    // loading requests. We have a test (GuiceSetupTest) that uses
+    // Stage.PRODUCTION to find errors.
+    Stage stage = getInjectorStage();
+    long start = System.currentTimeMillis();
+    Injector injector =
+        Guice.createInjector(stage, GuiceSetup.getRootModule(), GuiceSetup.getServletModule());
+    log.info("Created injector in " + stage + " stage in " + (System.currentTimeMillis() - start)
+        + "ms");
+    return injector;
   }
 }
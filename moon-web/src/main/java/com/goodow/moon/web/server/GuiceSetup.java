@@ -15,17 +15,28 @@ package com.goodow.moon.web.server;
 
 import com.google.common.collect.Sets;
 import com.google.inject.AbstractModule;
+import com.google.inject.Key;
 import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+import com.google.inject.name.Names;
 import com.google.inject.servlet.ServletModule;
 import com.google.inject.util.Modules;
+import com.google.walkaround.util.server.flags.FlagDeclaration;
+import com.google.walkaround.util.server.flags.JsonFlags;
 import com.google.walkaround.wave.server.DatastoreTimeoutMillis;
+import com.google.walkaround.wave.server.FlagName;
 
+import java.util.Arrays;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.logging.Logger;
 
 import javax.servlet.Filter;
 
 public class GuiceSetup {
+  /** Name of the binding holding the parsed flags.json; see {@link ConfigStore}. */
+  static final String FLAGS_MAP_NAME = "moon flags map";
+
   private static final long INTERACTIVE_DATASTORE_TIMEOUT_MILLIS = 10000L;
   @SuppressWarnings("unused") private static final Logger log = Logger.getLogger(GuiceSetup.class
       .getName());
@@ -50,8 +61,16 @@ public class GuiceSetup {
   }
 
   public static Module getRootModule() {
-    return Modules.combine(Modules.combine(extraModules),
-        com.google.walkaround.wave.server.GuiceSetup.getRootModule(), new MoonServerModule());
+    return Modules.combine(Modules.combine(extraModules), Modules.override(
+        com.google.walkaround.wave.server.GuiceSetup.getRootModule()).with(new AbstractModule() {
+      @Override
+      public void configure() {
+        // Serve walkaround's flags from the same ConfigStore snapshot as ours.
+        JsonFlags.bind(binder(), Arrays.asList(FlagName.values()), getProvider(Key.get(
+            new TypeLiteral<Map<FlagDeclaration, Object>>() {
+            }, Names.named(FLAGS_MAP_NAME))));
+      }
+    }), new MoonServerModule());
   }
 
   public static Module getServletModule() {
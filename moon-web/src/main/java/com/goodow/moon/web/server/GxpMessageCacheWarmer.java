@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.gxp.base.GxpTemplate;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Loads the GXP message bundles for the configured locales into the {@link GxpTemplate} message
+ * cache when the injector is created.
+ */
+@Singleton
+public class GxpMessageCacheWarmer {
+  /** Message source generated by gxpc for the templates in the gxp package; see pom.xml. */
+  public static final String MESSAGE_SOURCE = "com.goodow.moon.web.server.gxp.messages";
+
+  private static final Logger log = Logger.getLogger(GxpMessageCacheWarmer.class.getName());
+
+  static Locale[] parseLocales(String locales) {
+    List<Locale> result = new ArrayList<Locale>();
+    for (String tag : locales.split(",")) {
+      tag = tag.trim();
+      if (tag.isEmpty()) {
+        continue;
+      }
+      String[] parts = tag.split("_", 3);
+      result.add(new Locale(parts[0], parts.length > 1 ? parts[1] : "", parts.length > 2
+          ? parts[2] : ""));
+    }
+    return result.toArray(new Locale[result.size()]);
+  }
+
+  private final Locale[] locales;
+
+  @Inject
+  GxpMessageCacheWarmer(@Config(ConfigName.GXP_LOCALES) String locales) {
+    this.locales = parseLocales(locales);
+    warm();
+  }
+
+  /** @return the number of messages newly added to the cache. */
+  public int warm() {
+    long start = System.currentTimeMillis();
+    int added = GxpTemplate.warmMessageCache(MESSAGE_SOURCE, locales);
+    log.info("Loaded " + added + " GXP messages for " + locales.length + " locales in "
+        + (System.currentTimeMillis() - start) + "ms");
+    return added;
+  }
+
+  @Override
+  public String toString() {
+    return "GxpMessageCache(size=" + GxpTemplate.getMessageCacheSize() + ", hits="
+        + GxpTemplate.getMessageCacheHits() + ", misses=" + GxpTemplate.getMessageCacheMisses()
+        + ")";
+  }
+}
@@ -17,13 +17,10 @@ package com.goodow.moon.web.server;
 import com.google.inject.AbstractModule;
 import com.google.inject.Key;
 import com.google.inject.Provides;
-import com.google.inject.Singleton;
 import com.google.inject.TypeLiteral;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
-import com.google.walkaround.util.server.Util;
 import com.google.walkaround.util.server.flags.FlagDeclaration;
-import com.google.walkaround.util.server.flags.FlagFormatException;
 import com.google.walkaround.util.server.flags.JsonFlags;
 
 import java.util.Arrays;
@@ -41,14 +38,20 @@ public class MoonServerModule extends AbstractModule {
     JsonFlags.bind(binder(), Arrays.asList(ConfigName.values()), binder().getProvider(
         Key.get(new TypeLiteral<Map<FlagDeclaration, Object>>() {
         }, Names.named("flag configuration map"))));
+
+    bind(GxpMessageCacheWarmer.class).asEagerSingleton();
+    requestStaticInjection(StructuredLog.class);
   }
 
   @Provides
   @Named("flag configuration map")
-  @Singleton
-  Map<FlagDeclaration, Object> provideFlagConfiguration(@Named("webinf root") String webinfRoot)
-      throws FlagFormatException {
-    return JsonFlags.parse(Arrays.asList(ConfigName.values()), Util.slurpRequired(webinfRoot
-        + "/config.json"));
+  Map<FlagDeclaration, Object> provideFlagConfiguration(ConfigStore configStore) {
+    return configStore.get().getConfig();
+  }
+
+  @Provides
+  @Named(GuiceSetup.FLAGS_MAP_NAME)
+  Map<FlagDeclaration, Object> provideFlags(ConfigStore configStore) {
+    return configStore.get().getFlags();
   }
 }
@@ -13,6 +13,7 @@
  */
 package com.goodow.moon.web.server;
 
+import com.goodow.moon.web.server.auth.AccountBatchHandler;
 import com.goodow.moon.web.server.auth.AdminAuthFilter;
 import com.goodow.moon.web.server.auth.GoogleOAuthProvider;
 import com.goodow.moon.web.server.auth.InteractiveAuthFilter;
@@ -20,17 +21,25 @@ import com.goodow.moon.web.server.auth.LoginHandler;
 import com.goodow.moon.web.server.auth.LogoutHandler;
 import com.goodow.moon.web.server.auth.OAuthCallbackHandler;
 import com.goodow.moon.web.server.auth.OAuthProvider;
+import com.goodow.moon.web.server.auth.OAuthProviderRegistry;
 import com.goodow.moon.web.server.auth.OAuthRequestHelper;
 import com.goodow.moon.web.server.auth.QqOAuthProvider;
 import com.goodow.moon.web.server.auth.RpcAuthFilter;
 import com.goodow.moon.web.server.auth.UserContext;
+import com.goodow.moon.web.server.stats.QueueStatsHandler;
+import com.goodow.moon.web.server.stats.RequestStats;
+import com.goodow.moon.web.server.stats.RequestStatsHandler;
+import com.goodow.moon.web.server.tasks.BulkDeleteHandler;
+import com.goodow.moon.web.server.tasks.BulkDeleteTaskHandler;
+import com.goodow.moon.web.server.tasks.BulkDeleter;
+import com.goodow.moon.web.server.tasks.ConvReindexer;
+import com.goodow.moon.web.server.tasks.PostCommitFlushFilter;
+import com.goodow.moon.web.server.tasks.ReindexHandler;
+import com.goodow.moon.web.server.tasks.ReindexTaskHandler;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.inject.multibindings.MapBinder;
 import com.google.walkaround.util.server.servlet.AbstractHandler;
-import com.google.walkaround.util.server.servlet.ExactPathHandlers;
-import com.google.walkaround.util.server.servlet.HandlerServlet;
-import com.google.walkaround.util.server.servlet.PrefixPathHandlers;
 import com.google.walkaround.wave.server.WalkaroundServletModule;
 import com.google.walkaround.wave.server.robot.RobotApiModule;
 import com.google.walkaround.wave.server.robot.dataapi.DataApiHandler;
@@ -48,7 +57,22 @@ public class MoonServletModule extends WalkaroundServletModule {
           .put("/login", LoginHandler.class)
 
           // Endpoints for RPCs etc.
-          .put("/robot/dataapi", DataApiHandler.class).build();
+          .put("/robot/dataapi", DataApiHandler.class)
+          .put("/robot/accounts", AccountBatchHandler.class)
+
+          // App Engine warmup requests.
+          .put("/_ah/warmup", WarmupHandler.class)
+
+          // Task queue handlers, admin only through web.xml.
+          .put(ConvReindexer.TASK_PATH, ReindexTaskHandler.class)
+          .put(BulkDeleter.TASK_PATH, BulkDeleteTaskHandler.class)
+
+          // Admin pages.
+          .put("/admin/bulkdelete", BulkDeleteHandler.class)
+          .put("/admin/config", ConfigHandler.class)
+          .put("/admin/queues", QueueStatsHandler.class)
+          .put("/admin/reindex", ReindexHandler.class)
+          .put("/admin/requeststats", RequestStatsHandler.class).build();
 
   /** Path bindings for handlers that serve all paths under some prefix. */
   private static final ImmutableMap<String, Class<? extends AbstractHandler>> PREFIX_PATH_HANDLERS =
@@ -56,24 +80,6 @@ public class MoonServletModule extends WalkaroundServletModule {
       // .put("/gadgets", GadgetsHandler.class)
           .build();
 
-  /** Checks that there are no conflicts between paths in the handler maps. */
-  private static void validatePaths() {
-    for (String prefix : PREFIX_PATH_HANDLERS.keySet()) {
-      for (String exact : EXACT_PATH_HANDLERS.keySet()) {
-        if (exact.startsWith(prefix)) {
-          throw new AssertionError("Handler conflict between prefix path " + prefix
-              + " and exact path " + exact);
-        }
-      }
-      for (String otherPrefix : PREFIX_PATH_HANDLERS.keySet()) {
-        if (!otherPrefix.equals(prefix) && otherPrefix.startsWith(prefix)) {
-          throw new AssertionError("Handler conflict between prefix path " + prefix
-              + " and prefix path " + otherPrefix);
-        }
-      }
-    }
-  }
-
   MoonServletModule(Iterable<? extends Filter> extraFilters) {
     super(extraFilters);
   }
@@ -92,43 +98,44 @@ public class MoonServletModule extends WalkaroundServletModule {
 
     super.configureServlets();
 
-    // All of the exact paths in EXACT_PATH_HANDLERS, and all the path prefixes
-    // from PREFIX_PATH_HANDLERS, are served with HandlerServlet.
-    validatePaths();
-    {
-      MapBinder<String, AbstractHandler> exactPathBinder =
-          MapBinder.newMapBinder(binder(), String.class, AbstractHandler.class,
-              ExactPathHandlers.class);
-      for (Map.Entry<String, Class<? extends AbstractHandler>> e : EXACT_PATH_HANDLERS.entrySet()) {
-        serve(e.getKey()).with(HandlerServlet.class);
-        exactPathBinder.addBinding(e.getKey()).to(e.getValue());
-      }
+    // All of the exact paths in EXACT_PATH_HANDLERS, all the path prefixes
+    // from PREFIX_PATH_HANDLERS and the auth filters are resolved by one
+    // PathRouter lookup in RouterFilter. Building it checks for conflicts
+    // between the handler paths.
+    PathRouter.Builder<Class<? extends AbstractHandler>, Class<? extends Filter>> routes =
+        PathRouter.builder();
+    for (Map.Entry<String, Class<? extends AbstractHandler>> e : EXACT_PATH_HANDLERS.entrySet()) {
+      routes.exact(e.getKey(), e.getValue());
     }
-    {
-      MapBinder<String, AbstractHandler> prefixPathBinder =
-          MapBinder.newMapBinder(binder(), String.class, AbstractHandler.class,
-              PrefixPathHandlers.class);
-      for (Map.Entry<String, Class<? extends AbstractHandler>> e : PREFIX_PATH_HANDLERS.entrySet()) {
-        serve(e.getKey() + "/*").with(HandlerServlet.class);
-        prefixPathBinder.addBinding(e.getKey()).to(e.getValue());
-      }
+    for (Map.Entry<String, Class<? extends AbstractHandler>> e : PREFIX_PATH_HANDLERS.entrySet()) {
+      routes.prefix(e.getKey(), e.getValue());
     }
+    RequestStats.trackPaths(EXACT_PATH_HANDLERS.keySet());
 
     for (String path : Arrays.asList("/admin", "/admin/*", "/upload", "/uploadform", "/download",
         "/thumbnail", "/attachmentinfo", "/gadgets/*")) {
-      filter(path).through(InteractiveAuthFilter.class);
+      routes.filter(path, InteractiveAuthFilter.class);
     }
-    for (String path : Arrays.asList("/gwterr", "/robot/dataapi")) {
-      filter(path).through(RpcAuthFilter.class);
+    for (String path : Arrays.asList("/gwterr", "/robot/dataapi", "/robot/accounts")) {
+      routes.filter(path, RpcAuthFilter.class);
     }
     for (String path : Arrays.asList("/admin", "/admin/*")) {
-      filter(path).through(AdminAuthFilter.class);
+      routes.filter(path, AdminAuthFilter.class);
     }
 
+    // RouterFilter ends the chain for routed paths, so filters that have to
+    // wrap every request must be registered before it.
+    filter("/*").through(PostCommitFlushFilter.class);
+    RouterFilter router = new RouterFilter(routes.build());
+    requestInjection(router);
+    filter("/*").through(router);
+
     MapBinder<String, OAuthProvider> aAuthProviders =
         MapBinder.newMapBinder(binder(), String.class, OAuthProvider.class);
     aAuthProviders.addBinding("google").to(GoogleOAuthProvider.class);
     aAuthProviders.addBinding("qq").to(QqOAuthProvider.class);
+    // Fails at startup if two providers claim the same user id prefix.
+    bind(OAuthProviderRegistry.class).asEagerSingleton();
 
     install(new RobotApiModule());
   }
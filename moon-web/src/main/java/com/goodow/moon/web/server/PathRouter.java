@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Maps request paths to a handler and the filters to run before it, with one walk over the path.
+ *
+ * Handlers serve either an exact path or all paths under a prefix. Filters apply to an exact path
+ * or, for patterns ending in {@code /*}, to all paths under a prefix. Conflicting handler paths are
+ * rejected when the router is built, and the filter list of every route is computed up front, in
+ * the order the filters were added.
+ *
+ * @param <H> the handler type
+ * @param <F> the filter type
+ */
+public final class PathRouter<H, F> {
+
+  /** What a lookup resolves to. */
+  public static final class Route<H, F> {
+    @Nullable private final H handler;
+    private final ImmutableList<F> filters;
+
+    Route(@Nullable H handler, ImmutableList<F> filters) {
+      this.handler = handler;
+      this.filters = filters;
+    }
+
+    /** @return the handler serving the path, or null if only filters apply to it. */
+    @Nullable
+    public H getHandler() {
+      return handler;
+    }
+
+    public ImmutableList<F> getFilters() {
+      return filters;
+    }
+
+    @Override
+    public String toString() {
+      return "Route(" + handler + ", " + filters + ")";
+    }
+  }
+
+  public static class Builder<H, F> {
+    private final Node<H, F> root = new Node<H, F>();
+    private int nextFilterIndex;
+
+    /** Serves exactly {@code path} with {@code handler}. */
+    public Builder<H, F> exact(String path, H handler) {
+      Node<H, F> node = root.put(path);
+      if (node.exactHandler != null) {
+        throw new IllegalStateException("Handler conflict on exact path " + path + ": "
+            + node.exactHandler + " and " + handler);
+      }
+      node.exactHandler = handler;
+      return this;
+    }
+
+    /** Serves all paths under {@code prefix + "/"} with {@code handler}. */
+    public Builder<H, F> prefix(String prefix, H handler) {
+      Node<H, F> node = root.put(prefix + "/");
+      if (node.prefixHandler != null) {
+        throw new IllegalStateException("Handler conflict on prefix path " + prefix + ": "
+            + node.prefixHandler + " and " + handler);
+      }
+      node.prefixHandler = handler;
+      return this;
+    }
+
+    /** Runs {@code filter} for {@code pattern}, an exact path or a prefix followed by "/*". */
+    public Builder<H, F> filter(String pattern, F filter) {
+      Indexed<F> indexed = new Indexed<F>(nextFilterIndex++, filter);
+      if (pattern.endsWith("/*")) {
+        root.put(pattern.substring(0, pattern.length() - 1)).prefixFilters.add(indexed);
+      } else {
+        root.put(pattern).exactFilters.add(indexed);
+      }
+      return this;
+    }
+
+    /** @throws IllegalStateException if a handler path lies under another handler's prefix */
+    public PathRouter<H, F> build() {
+      root.compile("", null, ImmutableList.<Indexed<F>> of(), null, null);
+      return new PathRouter<H, F>(root);
+    }
+  }
+
+  private static final class Indexed<F> implements Comparable<Indexed<F>> {
+    final int index;
+    final F filter;
+
+    Indexed(int index, F filter) {
+      this.index = index;
+      this.filter = filter;
+    }
+
+    @Override
+    public int compareTo(Indexed<F> o) {
+      return index - o.index;
+    }
+  }
+
+  /** Trie node; one per character, children kept sorted for binary search. */
+  private static final class Node<H, F> {
+    char[] keys = new char[0];
+    @SuppressWarnings("unchecked") Node<H, F>[] children = new Node[0];
+
+    // Built by Builder.
+    H exactHandler;
+    H prefixHandler;
+    final List<Indexed<F>> exactFilters = Lists.newArrayList();
+    final List<Indexed<F>> prefixFilters = Lists.newArrayList();
+
+    // Computed by compile().
+    Route<H, F> exactRoute;
+    Route<H, F> prefixRoute;
+
+    Node<H, F> put(String path) {
+      Node<H, F> node = this;
+      for (int i = 0; i < path.length(); i++) {
+        char c = path.charAt(i);
+        int pos = Arrays.binarySearch(node.keys, c);
+        if (pos < 0) {
+          pos = -pos - 1;
+          char[] keys = new char[node.keys.length + 1];
+          @SuppressWarnings("unchecked") Node<H, F>[] children = new Node[keys.length];
+          System.arraycopy(node.keys, 0, keys, 0, pos);
+          System.arraycopy(node.children, 0, children, 0, pos);
+          keys[pos] = c;
+          children[pos] = new Node<H, F>();
+          System.arraycopy(node.keys, pos, keys, pos + 1, node.keys.length - pos);
+          System.arraycopy(node.children, pos, children, pos + 1, node.keys.length - pos);
+          node.keys = keys;
+          node.children = children;
+        }
+        node = node.children[pos];
+      }
+      return node;
+    }
+
+    @Nullable
+    Node<H, F> child(char c) {
+      int pos = Arrays.binarySearch(keys, c);
+      return pos < 0 ? null : children[pos];
+    }
+
+    /**
+     * Computes the routes of this subtree from what applies above it: the route of paths that
+     * leave the trie below, the prefix filters, and the prefix handler with its path.
+     */
+    void compile(String path, @Nullable Route<H, F> inheritedRoute,
+        ImmutableList<Indexed<F>> inheritedFilters, @Nullable H inheritedHandler,
+        @Nullable String inheritedHandlerPath) {
+      if (exactHandler != null) {
+        Node<H, F> slash = child('/');
+        if (inheritedHandler != null || slash != null && slash.prefixHandler != null) {
+          throw new IllegalStateException("Handler conflict between prefix path "
+              + (inheritedHandler != null ? inheritedHandlerPath : path + "/") + " and exact path "
+              + path);
+        }
+      }
+      if (prefixHandler != null) {
+        if (inheritedHandler != null) {
+          throw new IllegalStateException("Handler conflict between prefix path "
+              + inheritedHandlerPath + " and prefix path " + path);
+        }
+        inheritedHandler = prefixHandler;
+        inheritedHandlerPath = path;
+      }
+      if (!prefixFilters.isEmpty()) {
+        inheritedFilters = merge(inheritedFilters, prefixFilters);
+      }
+      if (prefixHandler != null || !prefixFilters.isEmpty()) {
+        inheritedRoute = new Route<H, F>(inheritedHandler, unwrap(inheritedFilters));
+      }
+      prefixRoute = inheritedRoute;
+      if (exactHandler != null || !exactFilters.isEmpty()) {
+        exactRoute =
+            new Route<H, F>(exactHandler != null ? exactHandler : inheritedHandler, unwrap(merge(
+                inheritedFilters, exactFilters)));
+      }
+      for (int i = 0; i < keys.length; i++) {
+        children[i].compile(path + keys[i], inheritedRoute, inheritedFilters, inheritedHandler,
+            inheritedHandlerPath);
+      }
+    }
+  }
+
+  private static <F> ImmutableList<Indexed<F>> merge(List<Indexed<F>> a, List<Indexed<F>> b) {
+    List<Indexed<F>> merged = Lists.newArrayList(a);
+    merged.addAll(b);
+    Collections.sort(merged);
+    return ImmutableList.copyOf(merged);
+  }
+
+  private static <F> ImmutableList<F> unwrap(List<Indexed<F>> indexed) {
+    ImmutableList.Builder<F> b = ImmutableList.builder();
+    for (Indexed<F> i : indexed) {
+      b.add(i.filter);
+    }
+    return b.build();
+  }
+
+  public static <H, F> Builder<H, F> builder() {
+    return new Builder<H, F>();
+  }
+
+  private final Node<H, F> root;
+
+  private PathRouter(Node<H, F> root) {
+    this.root = root;
+  }
+
+  /** @return the route for {@code path}, or null if no handler or filter applies to it. */
+  @Nullable
+  public Route<H, F> lookup(String path) {
+    Node<H, F> node = root;
+    for (int i = 0, n = path.length(); i < n; i++) {
+      Node<H, F> next = node.child(path.charAt(i));
+      if (next == null) {
+        // Prefix routes are inherited downwards, so the last node reached has the deepest one.
+        return node.prefixRoute;
+      }
+      node = next;
+    }
+    return node.exactRoute != null ? node.exactRoute : node.prefixRoute;
+  }
+
+  /** @return a router with the same routes and each handler and filter replaced. */
+  public <H2, F2> PathRouter<H2, F2> transform(Function<? super H, H2> handlers,
+      Function<? super F, F2> filters) {
+    return new PathRouter<H2, F2>(transform(root, handlers, filters,
+        new IdentityHashMap<Route<H, F>, Route<H2, F2>>()));
+  }
+
+  private static <H, F, H2, F2> Node<H2, F2> transform(Node<H, F> node,
+      Function<? super H, H2> handlers, Function<? super F, F2> filters,
+      Map<Route<H, F>, Route<H2, F2>> done) {
+    Node<H2, F2> copy = new Node<H2, F2>();
+    copy.keys = node.keys;
+    @SuppressWarnings("unchecked") Node<H2, F2>[] children = new Node[node.children.length];
+    for (int i = 0; i < children.length; i++) {
+      children[i] = transform(node.children[i], handlers, filters, done);
+    }
+    copy.children = children;
+    copy.exactRoute = transform(node.exactRoute, handlers, filters, done);
+    copy.prefixRoute = transform(node.prefixRoute, handlers, filters, done);
+    return copy;
+  }
+
+  private static <H, F, H2, F2> Route<H2, F2> transform(@Nullable Route<H, F> route,
+      Function<? super H, H2> handlers, Function<? super F, F2> filters,
+      Map<Route<H, F>, Route<H2, F2>> done) {
+    if (route == null) {
+      return null;
+    }
+    Route<H2, F2> copy = done.get(route);
+    if (copy == null) {
+      ImmutableList.Builder<F2> b = ImmutableList.builder();
+      for (F f : route.filters) {
+        b.add(filters.apply(f));
+      }
+      copy =
+          new Route<H2, F2>(route.handler == null ? null : handlers.apply(route.handler), b
+              .build());
+      done.put(route, copy);
+    }
+    return copy;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Provider;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Looks up the {@link PathRouter} route of each request once, runs the route's filters and then
+ * either the route's handler or, for paths served elsewhere, the rest of the chain.
+ */
+class RouterFilter implements Filter {
+  private static final String ALLOW = "GET, HEAD, POST, OPTIONS";
+
+  /** Runs the filters of a route, then its handler or the container's chain. */
+  private static class RouteChain implements FilterChain {
+    private final PathRouter.Route<Provider<? extends AbstractHandler>,
+        Provider<? extends Filter>> route;
+    private final FilterChain next;
+    private int index;
+
+    RouteChain(
+        PathRouter.Route<Provider<? extends AbstractHandler>, Provider<? extends Filter>> route,
+        FilterChain next) {
+      this.route = route;
+      this.next = next;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response) throws IOException,
+        ServletException {
+      ImmutableList<Provider<? extends Filter>> filters = route.getFilters();
+      if (index < filters.size()) {
+        filters.get(index++).get().doFilter(request, response, this);
+      } else if (route.getHandler() != null) {
+        dispatch(route.getHandler().get(), (HttpServletRequest) request,
+            (HttpServletResponse) response);
+      } else {
+        next.doFilter(request, response);
+      }
+    }
+  }
+
+  /**
+   * The response to a HEAD request: what the handler's doGet writes is dropped, as
+   * {@link javax.servlet.http.HttpServlet#doHead} does.
+   */
+  private static class NoBodyResponse extends HttpServletResponseWrapper {
+    private final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+      }
+    };
+    private PrintWriter writer;
+
+    NoBodyResponse(HttpServletResponse resp) {
+      super(resp);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+      if (writer == null) {
+        writer = new PrintWriter(new OutputStreamWriter((OutputStream) out));
+      }
+      return writer;
+    }
+  }
+
+  /** Dispatches like walkaround's HandlerServlet, an HttpServlet, did for routed paths. */
+  private static void dispatch(AbstractHandler handler, HttpServletRequest req,
+      HttpServletResponse resp) throws IOException, ServletException {
+    String method = req.getMethod();
+    if ("GET".equals(method)) {
+      handler.doGet(req, resp);
+    } else if ("POST".equals(method)) {
+      handler.doPost(req, resp);
+    } else if ("HEAD".equals(method)) {
+      NoBodyResponse noBody = new NoBodyResponse(resp);
+      handler.doGet(req, noBody);
+      if (noBody.writer != null) {
+        noBody.writer.flush();
+      }
+    } else if ("OPTIONS".equals(method)) {
+      resp.setHeader("Allow", ALLOW);
+    } else {
+      resp.setHeader("Allow", ALLOW);
+      resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+    }
+  }
+
+  private final PathRouter<Class<? extends AbstractHandler>, Class<? extends Filter>> routes;
+  private PathRouter<Provider<? extends AbstractHandler>, Provider<? extends Filter>> router;
+
+  RouterFilter(PathRouter<Class<? extends AbstractHandler>, Class<? extends Filter>> routes) {
+    this.routes = routes;
+  }
+
+  @Inject
+  void resolve(final Injector injector) {
+    router =
+        routes.transform(
+            new Function<Class<? extends AbstractHandler>, Provider<? extends AbstractHandler>>() {
+              @Override
+              public Provider<? extends AbstractHandler> apply(
+                  Class<? extends AbstractHandler> handler) {
+                return injector.getProvider(handler);
+              }
+            }, new Function<Class<? extends Filter>, Provider<? extends Filter>>() {
+              @Override
+              public Provider<? extends Filter> apply(Class<? extends Filter> filter) {
+                return injector.getProvider(filter);
+              }
+            });
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
+      throws IOException, ServletException {
+    HttpServletRequest req = (HttpServletRequest) request;
+    String path = req.getRequestURI();
+    String contextPath = req.getContextPath();
+    if (contextPath != null && !contextPath.isEmpty()) {
+      path = path.substring(contextPath.length());
+    }
+    PathRouter.Route<Provider<? extends AbstractHandler>, Provider<? extends Filter>> route =
+        router.lookup(path);
+    if (route == null) {
+      filterChain.doFilter(request, response);
+    } else {
+      new RouteChain(route, filterChain).doFilter(request, response);
+    }
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+  }
+}
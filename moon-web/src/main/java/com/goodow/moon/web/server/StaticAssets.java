@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Maps static files to content-hashed copies named like the {@code *.cache.*} files of the GWT
+ * compiler, which appengine-web.xml lets browsers cache for a year.
+ *
+ * {@link #main} writes the copies and WEB-INF/static-assets.properties into the exploded webapp in
+ * the prepare-package phase. Without that manifest, as in development mode, every path maps to
+ * itself.
+ */
+@Singleton
+public class StaticAssets {
+
+  static final String MANIFEST = "static-assets.properties";
+  /** Files fingerprinted in addition to everything under static/. */
+  private static final List<String> ROOT_ASSETS = ImmutableList.of("favicon.ico");
+
+  private static final Logger log = Logger.getLogger(StaticAssets.class.getName());
+
+  /**
+   * Fingerprints the static files of a webapp.
+   *
+   * @param args the webapp source directory and the exploded webapp directory to write to
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      throw new IllegalArgumentException("Usage: StaticAssets <webapp dir> <output dir>");
+    }
+    File source = new File(args[0]);
+    File output = new File(args[1]);
+    List<String> paths = ImmutableList.<String> builder().addAll(ROOT_ASSETS).addAll(
+        list(new File(source, "static"), "static/")).build();
+    Properties manifest = new Properties();
+    for (String path : paths) {
+      File file = new File(source, path);
+      if (!file.isFile()) {
+        continue;
+      }
+      byte[] content = Files.toByteArray(file);
+      String hashed = hashedName(path, Hashing.md5().hashBytes(content).toString());
+      File target = new File(output, hashed);
+      Files.createParentDirs(target);
+      Files.write(content, target);
+      manifest.setProperty("/" + path, "/" + hashed);
+    }
+    File manifestFile = new File(output, "WEB-INF/" + MANIFEST);
+    Files.createParentDirs(manifestFile);
+    OutputStream out = new FileOutputStream(manifestFile);
+    try {
+      manifest.store(out, "Generated by StaticAssets; do not edit");
+    } finally {
+      out.close();
+    }
+    System.out.println("Fingerprinted " + manifest.size() + " static files into " + output);
+  }
+
+  /** {@code static/images/unknown.jpg} becomes {@code static/images/unknown.<hash>.cache.jpg}. */
+  static String hashedName(String path, String hash) {
+    int dot = path.lastIndexOf('.');
+    if (dot <= path.lastIndexOf('/')) {
+      return path + "." + hash + ".cache";
+    }
+    return path.substring(0, dot) + "." + hash + ".cache" + path.substring(dot);
+  }
+
+  private static List<String> list(File dir, String prefix) {
+    ImmutableList.Builder<String> paths = ImmutableList.builder();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          paths.addAll(list(file, prefix + file.getName() + "/"));
+        } else {
+          paths.add(prefix + file.getName());
+        }
+      }
+    }
+    return paths.build();
+  }
+
+  private final ImmutableMap<String, String> urls;
+
+  @Inject
+  StaticAssets(@Named("webinf root") String webinfRoot) throws IOException {
+    File manifestFile = new File(webinfRoot, MANIFEST);
+    if (!manifestFile.isFile()) {
+      log.info("No " + MANIFEST + "; serving static files under their own names");
+      urls = ImmutableMap.of();
+      return;
+    }
+    Properties manifest = new Properties();
+    InputStream in = new FileInputStream(manifestFile);
+    try {
+      manifest.load(in);
+    } finally {
+      in.close();
+    }
+    urls = ImmutableMap.copyOf(Maps.fromProperties(manifest));
+  }
+
+  /** @return the URL to reference the static file at {@code path}, e.g. "/favicon.ico". */
+  public String url(String path) {
+    String hashed = urls.get(path);
+    return hashed == null ? path : hashed;
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.common.base.Splitter;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+/**
+ * Logging for the auth and OAuth request paths: one {@code event key=value ...} line per call,
+ * built only if it is logged, sampled per category, and with credentials redacted.
+ *
+ * Values may be {@link Supplier}s, which are only called for lines that are logged. Lines below
+ * WARNING are kept at the rate {@code log_sample_rates} in config.json sets for their category,
+ * read once at start-up; warnings and errors are always kept.
+ */
+public final class StructuredLog {
+
+  /** Keys whose values are credentials. */
+  private static final ImmutableSet<String> SECRET_KEYS = ImmutableSet.of("access_token",
+      "refresh_token", "client_secret", "code", "token");
+  /**
+   * Credentials inside URLs, form bodies and JSON. The names must not be preceded by a word
+   * character, so that e.g. {@code error_code} and {@code zipcode} are left alone.
+   */
+  private static final Pattern SECRET_PARAMS = Pattern.compile("(?<![A-Za-z0-9_])"
+      + "((?:access_token|refresh_token|client_secret|code)\"?\\s*[=:]\\s*\"?)([^&\"\\s,}]+)");
+  /** Characters of a credential kept to tell credentials apart in the logs. */
+  private static final int KEPT_PREFIX = 4;
+
+  /** Keep one line in this many per category; 0 to drop all lines below WARNING. */
+  private static volatile ImmutableMap<String, Long> sampleEvery = ImmutableMap.of();
+
+  public static StructuredLog get(Class<?> owner, String category) {
+    return new StructuredLog(owner, category);
+  }
+
+  /** @param rates comma-separated {@code category=rate} pairs, with rates between 0 and 1. */
+  @Inject
+  static void setSampleRates(@Config(ConfigName.LOG_SAMPLE_RATES) String rates) {
+    ImmutableMap.Builder<String, Long> every = ImmutableMap.builder();
+    for (Map.Entry<String, String> e : Splitter.on(',').trimResults().omitEmptyStrings()
+        .withKeyValueSeparator("=").split(rates).entrySet()) {
+      double rate = Double.parseDouble(e.getValue().trim());
+      every.put(e.getKey().trim(), rate <= 0 ? 0 : Math.max(1, Math.round(1 / rate)));
+    }
+    sampleEvery = every.build();
+  }
+
+  /** @return {@code value} with the credentials in it shortened to their first characters. */
+  public static String redact(String value) {
+    Matcher m = SECRET_PARAMS.matcher(value);
+    if (!m.find()) {
+      return value;
+    }
+    StringBuffer b = new StringBuffer();
+    do {
+      m.appendReplacement(b, Matcher.quoteReplacement(m.group(1) + mask(m.group(2))));
+    } while (m.find());
+    return m.appendTail(b).toString();
+  }
+
+  private static String mask(String secret) {
+    return secret.length() <= 2 * KEPT_PREFIX ? "***" : secret.substring(0, KEPT_PREFIX) + "***";
+  }
+
+  private final Logger logger;
+  private final String source;
+  private final String category;
+  private final AtomicLong lines = new AtomicLong();
+
+  private StructuredLog(Class<?> owner, String category) {
+    this.logger = Logger.getLogger(owner.getName());
+    this.source = owner.getName();
+    this.category = category;
+  }
+
+  /** @return whether a line at {@code level} would be logged; counts towards the sampling. */
+  public boolean isLoggable(Level level) {
+    if (!logger.isLoggable(level)) {
+      return false;
+    }
+    if (level.intValue() >= Level.WARNING.intValue()) {
+      return true;
+    }
+    Long every = sampleEvery.get(category);
+    return every == null || (every != 0 && lines.getAndIncrement() % every == 0);
+  }
+
+  public void fine(String event, Object... keyValues) {
+    log(Level.FINE, null, event, keyValues);
+  }
+
+  public void info(String event, Object... keyValues) {
+    log(Level.INFO, null, event, keyValues);
+  }
+
+  public void warning(String event, @Nullable Throwable thrown, Object... keyValues) {
+    log(Level.WARNING, thrown, event, keyValues);
+  }
+
+  /** Logs {@code event} with alternating keys and values. */
+  public void log(Level level, @Nullable Throwable thrown, String event, Object... keyValues) {
+    if (isLoggable(level)) {
+      logger.logp(level, source, null, format(event, keyValues), thrown);
+    }
+  }
+
+  static String format(String event, Object... keyValues) {
+    StringBuilder b = new StringBuilder(event);
+    for (int i = 0; i + 1 < keyValues.length; i += 2) {
+      String key = String.valueOf(keyValues[i]);
+      Object value = keyValues[i + 1];
+      if (value instanceof Supplier) {
+        value = ((Supplier<?>) value).get();
+      }
+      String s = String.valueOf(value);
+      b.append(' ').append(key).append('=').append(
+          SECRET_KEYS.contains(key) ? mask(s) : redact(s));
+    }
+    return b.toString();
+  }
+}
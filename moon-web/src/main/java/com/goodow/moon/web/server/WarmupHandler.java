@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server;
+
+import com.goodow.moon.web.server.auth.OAuthProvider;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Handles App Engine warmup requests (/_ah/warmup), which are only accepted from admins (see
+ * web.xml). The request itself makes the new instance create its injector; in the PRODUCTION
+ * stage that builds the singletons, including {@link GxpMessageCacheWarmer}. What is left for
+ * the handler is to set up the OAuth providers, which are not singletons.
+ */
+public class WarmupHandler extends AbstractHandler {
+
+  private static final Logger log = Logger.getLogger(WarmupHandler.class.getName());
+
+  @Inject GxpMessageCacheWarmer gxpMessages;
+  @Inject Map<String, OAuthProvider> oAuthProviders;
+  @Inject Provider<OAuthProvider.Helper> oAuthHelper;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    long start = System.currentTimeMillis();
+    for (String providerName : oAuthProviders.keySet()) {
+      oAuthHelper.get().getAuthorizationEndpointUrl(providerName, "warmup");
+    }
+
+    String summary =
+        "Warmed up " + oAuthProviders.size() + " OAuth providers in "
+            + (System.currentTimeMillis() - start) + "ms; " + gxpMessages;
+    log.info(summary);
+    resp.setContentType("text/plain");
+    resp.getWriter().println(summary);
+  }
+}
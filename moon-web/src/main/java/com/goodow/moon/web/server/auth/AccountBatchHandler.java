@@ -0,0 +1,206 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.DatastoreTimeoutException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.RetryHelper;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.auth.AccountStore;
+import com.google.walkaround.wave.server.auth.AccountStore.Record;
+import com.google.walkaround.wave.server.auth.OAuthCredentials;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Resolves many accounts in one call for robot and data API clients acting for several
+ * participants: POST {@code ids} (comma-separated user ids) returns, for each id, the participant
+ * and a freshly issued token, or null if there is no usable account.
+ *
+ * Records come from one memcache batch get, and the misses from one non-transactional batch
+ * datastore get of the entities {@link AccountStore} writes. An account whose entity is missing or
+ * does not look the way this handler expects is read through {@link AccountStore} instead, so a
+ * change to its layout costs speed but not correctness. Issuing tokens for other users is an admin
+ * privilege.
+ */
+public class AccountBatchHandler extends AbstractHandler {
+  static final int MAX_IDS = 500;
+
+  // Entity layout of AccountStore.
+  private static final String ACCOUNT_KIND = "Account";
+  private static final String PARTICIPANT_ID_PROPERTY = "participantId";
+  private static final String REFRESH_TOKEN_PROPERTY = "oauthRefreshToken";
+  private static final String ACCESS_TOKEN_PROPERTY = "oauthAccessToken";
+  private static final Set<String> KNOWN_PROPERTIES = ImmutableSet.of(PARTICIPANT_ID_PROPERTY,
+      REFRESH_TOKEN_PROPERTY, ACCESS_TOKEN_PROPERTY);
+
+  private static final Logger log = Logger.getLogger(AccountBatchHandler.class.getName());
+
+  @Inject UserContext userContext;
+  @Inject SessionCache sessionCache;
+  @Inject AccountStore accountStore;
+  @Inject TokenIssuer tokenIssuer;
+
+  private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    if (!userContext.isUserAdmin()) {
+      log.warning("Batch account lookup by non-admin " + userContext.getParticipantId());
+      resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+    LinkedHashSet<StableUserId> ids = new LinkedHashSet<StableUserId>();
+    for (String id : requireParameter(req, "ids").split(",")) {
+      id = id.trim();
+      if (!id.isEmpty()) {
+        ids.add(new StableUserId(id));
+      }
+    }
+    if (ids.size() > MAX_IDS) {
+      throw new BadRequestException("At most " + MAX_IDS + " ids per request, got " + ids.size());
+    }
+
+    Map<StableUserId, Record> records = Maps.newHashMap(sessionCache.getRecords(ids));
+    List<StableUserId> missing = Lists.newArrayList();
+    for (StableUserId id : ids) {
+      if (!records.containsKey(id)) {
+        missing.add(id);
+      }
+    }
+    Map<Key, Entity> entities;
+    try {
+      entities = getEntities(missing);
+    } catch (PermanentFailure e) {
+      throw new IOException("PermanentFailure getting " + missing.size() + " accounts", e);
+    }
+    int unparsed = 0;
+    for (StableUserId id : missing) {
+      Entity entity = entities.get(accountKey(id));
+      Record record = entity == null ? null : parse(id, entity);
+      if (record == null) {
+        unparsed++;
+        try {
+          record = accountStore.get(id);
+        } catch (PermanentFailure e) {
+          throw new IOException("PermanentFailure getting account " + id, e);
+        }
+      }
+      if (record != null) {
+        sessionCache.putRecord(record);
+        records.put(id, record);
+      }
+    }
+    log.info("Resolved " + records.size() + " of " + ids.size() + " accounts, "
+        + missing.size() + " from the datastore, " + unparsed + " of them through AccountStore");
+
+    JSONObject accounts = new JSONObject();
+    try {
+      for (StableUserId id : ids) {
+        Record record = records.get(id);
+        String token =
+            record == null || record.getParticipantId() == null ? null : tokenIssuer.issue(id,
+                record.getParticipantId(), record.getOAuthCredentials() == null ? null : record
+                    .getOAuthCredentials().getAccessToken());
+        if (token == null) {
+          accounts.put(id.getId(), JSONObject.NULL);
+          continue;
+        }
+        JSONObject account = new JSONObject();
+        account.put(TokenBasedAccountLookup.USER_ID_KEY, id.getId());
+        account.put(OAuthCallbackHandler.EMAIL, record.getParticipantId().getAddress());
+        account.put(OAuthCallbackHandler.ACCESS_TOKEN, token);
+        accounts.put(id.getId(), account);
+      }
+    } catch (JSONException e) {
+      throw new RuntimeException("Bad JSON: " + accounts, e);
+    }
+    resp.setStatus(200);
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().print(accounts.toString());
+  }
+
+  private Map<Key, Entity> getEntities(List<StableUserId> ids) throws PermanentFailure {
+    if (ids.isEmpty()) {
+      return Maps.newHashMap();
+    }
+    final List<Key> keys = Lists.newArrayListWithCapacity(ids.size());
+    for (StableUserId id : ids) {
+      keys.add(accountKey(id));
+    }
+    // Every account is its own entity group, more than a transaction may span.
+    return new RetryHelper().run(new RetryHelper.Body<Map<Key, Entity>>() {
+      @Override
+      public Map<Key, Entity> run() throws RetryableFailure {
+        try {
+          return datastore.get(keys);
+        } catch (DatastoreTimeoutException e) {
+          throw new RetryableFailure("Timeout getting " + keys.size() + " accounts", e);
+        } catch (DatastoreFailureException e) {
+          throw new RetryableFailure("Failure getting " + keys.size() + " accounts", e);
+        }
+      }
+    });
+  }
+
+  private static Key accountKey(StableUserId id) {
+    return KeyFactory.createKey(ACCOUNT_KIND, id.getId());
+  }
+
+  /** @return the record {@code entity} holds, or null if it has an unexpected layout. */
+  @Nullable
+  private static Record parse(StableUserId id, Entity entity) {
+    if (!KNOWN_PROPERTIES.containsAll(entity.getProperties().keySet())) {
+      return null;
+    }
+    Object participant = entity.getProperty(PARTICIPANT_ID_PROPERTY);
+    Object refreshToken = entity.getProperty(REFRESH_TOKEN_PROPERTY);
+    Object accessToken = entity.getProperty(ACCESS_TOKEN_PROPERTY);
+    if (!(participant instanceof String) || (refreshToken != null
+        && !(refreshToken instanceof String)) || (accessToken != null
+        && !(accessToken instanceof String))) {
+      return null;
+    }
+    return new Record(id, ParticipantId.ofUnsafe((String) participant), accessToken == null
+        ? null : new OAuthCredentials(refreshToken == null ? "" : (String) refreshToken,
+            (String) accessToken));
+  }
+}
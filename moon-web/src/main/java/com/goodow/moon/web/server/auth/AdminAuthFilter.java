@@ -13,10 +13,11 @@
  */
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.stats.RequestStats;
+
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
-import com.google.walkaround.util.server.servlet.BadRequestException;
 
 import java.io.IOException;
 import java.util.logging.Logger;
@@ -27,6 +28,7 @@ import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
 
 @Singleton
 public class AdminAuthFilter implements Filter {
@@ -46,11 +48,15 @@ public class AdminAuthFilter implements Filter {
   @Override
   public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
       throws IOException, ServletException {
-    if (!userCtx.get().isUserAdmin()) {
-      log.severe("Admin page requested by non-admin user: "
+    long start = System.nanoTime();
+    boolean admin = userCtx.get().isUserAdmin();
+    RequestStats.recordStage("AdminAuthFilter", System.nanoTime() - start);
+    if (!admin) {
+      log.warning("Admin page requested by non-admin user: "
           + (userCtx.get().hasParticipantId() ? userCtx.get().getParticipantId()
               : "(not logged in)"));
-      throw new BadRequestException();
+      ((HttpServletResponse) response).sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
     }
     filterChain.doFilter(request, response);
   }
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.util.Locale;
+
+/**
+ * Who may use the admin pages: every participant of the domains in {@code admin_domains} and the
+ * participants in {@code admin_participants}, both comma-separated lists in config.json. The lists
+ * are compiled into hash sets once per instance, so overrides of them take effect on restart.
+ * Deciding for a participant is a set lookup, cheaper than any shared cache of the decision.
+ */
+@Singleton
+public class AdminRoles {
+  private static ImmutableSet<String> compile(String list) {
+    ImmutableSet.Builder<String> set = ImmutableSet.builder();
+    for (String entry : Splitter.on(',').trimResults().omitEmptyStrings().split(list)) {
+      set.add(entry.toLowerCase(Locale.ENGLISH));
+    }
+    return set.build();
+  }
+
+  private final ImmutableSet<String> domains;
+  private final ImmutableSet<String> participants;
+
+  @Inject
+  AdminRoles(@Config(ConfigName.ADMIN_DOMAINS) String domains,
+      @Config(ConfigName.ADMIN_PARTICIPANTS) String participants) {
+    this.domains = compile(domains);
+    this.participants = compile(participants);
+  }
+
+  /** @return whether the configuration makes {@code participant} an admin. */
+  public boolean isConfiguredAdmin(ParticipantId participant) {
+    String address = participant.getAddress().toLowerCase(Locale.ENGLISH);
+    return participants.contains(address)
+        || domains.contains(address.substring(address.indexOf('@') + 1));
+  }
+}
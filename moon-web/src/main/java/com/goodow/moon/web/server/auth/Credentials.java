@@ -0,0 +1,155 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import java.util.Enumeration;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The user id and secret token presented with a request.
+ *
+ * Cookies come first, read straight from the raw Cookie headers in one pass without building
+ * {@code Cookie} objects; then the {@code u} and {@code Authorization} headers; request
+ * parameters are only consulted for what is still missing, since reading them may make the
+ * container parse the body.
+ */
+final class Credentials {
+  private static final String COOKIE_HEADER = "Cookie";
+  private static final String TOKEN_HEADER_KEY = "Authorization";
+  private static final String TOKEN_HEADER_VALUE_PREFIX_BEARER = "Bearer ";
+  private static final String TOKEN_HEADER_VALUE_PREFIX_OAUTH = "OAuth ";
+  private static final String TOKEN_REQUEST_PARAM_KEY = "access_token";
+
+  static Credentials extract(HttpServletRequest req) {
+    Credentials credentials = new Credentials();
+    for (Enumeration<?> headers = req.getHeaders(COOKIE_HEADER); headers != null
+        && headers.hasMoreElements() && !credentials.isComplete();) {
+      credentials.scanCookies((String) headers.nextElement());
+    }
+    if (credentials.userId == null) {
+      credentials.userId = req.getHeader(TokenBasedAccountLookup.USER_ID_KEY);
+    }
+    if (credentials.token == null) {
+      credentials.token = bearerToken(req.getHeader(TOKEN_HEADER_KEY));
+    }
+    if (credentials.userId == null) {
+      credentials.userId = req.getParameter(TokenBasedAccountLookup.USER_ID_KEY);
+    }
+    if (credentials.token == null) {
+      credentials.token = req.getParameter(TOKEN_REQUEST_PARAM_KEY);
+    }
+    return credentials;
+  }
+
+  /** @return the value of the first cookie named {@code name}, or null. */
+  @Nullable
+  static String getCookie(HttpServletRequest req, String name) {
+    for (Enumeration<?> headers = req.getHeaders(COOKIE_HEADER); headers != null
+        && headers.hasMoreElements();) {
+      String value = findCookie((String) headers.nextElement(), name);
+      if (value != null) {
+        return value;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String bearerToken(@Nullable String header) {
+    if (header == null || header.isEmpty()) {
+      return null;
+    }
+    String prefix =
+        header.charAt(0) == 'B' ? TOKEN_HEADER_VALUE_PREFIX_BEARER
+            : TOKEN_HEADER_VALUE_PREFIX_OAUTH;
+    return header.startsWith(prefix) ? header.substring(prefix.length()) : null;
+  }
+
+  @Nullable
+  private static String findCookie(String header, String name) {
+    Credentials found = new Credentials();
+    found.scan(header, name, null);
+    return found.userId;
+  }
+
+  @Nullable String userId;
+  @Nullable String token;
+
+  private Credentials() {
+  }
+
+  boolean isComplete() {
+    return userId != null && token != null;
+  }
+
+  private void scanCookies(String header) {
+    scan(header, TokenBasedAccountLookup.USER_ID_KEY, TokenBasedAccountLookup.TOKEN_COOKIE_KEY);
+  }
+
+  /**
+   * Parses {@code name=value} pairs separated by ';' or ',', storing the first value of
+   * {@code first} in {@link #userId} and of {@code second} in {@link #token}. Values are only
+   * copied out of the header when their name matches.
+   */
+  private void scan(String header, String first, @Nullable String second) {
+    int n = header.length();
+    int i = 0;
+    while (i < n) {
+      while (i < n && (header.charAt(i) == ' ' || header.charAt(i) == ';'
+          || header.charAt(i) == ',')) {
+        i++;
+      }
+      int nameStart = i;
+      while (i < n && header.charAt(i) != '=' && header.charAt(i) != ';') {
+        i++;
+      }
+      int nameEnd = i;
+      while (nameEnd > nameStart && header.charAt(nameEnd - 1) == ' ') {
+        nameEnd--;
+      }
+      if (i >= n || header.charAt(i) != '=') {
+        continue;
+      }
+      int valueStart = ++i;
+      while (i < n && header.charAt(i) != ';') {
+        i++;
+      }
+      int valueEnd = i;
+      while (valueEnd > valueStart && header.charAt(valueEnd - 1) == ' ') {
+        valueEnd--;
+      }
+      while (valueStart < valueEnd && header.charAt(valueStart) == ' ') {
+        valueStart++;
+      }
+      if (valueEnd - valueStart >= 2 && header.charAt(valueStart) == '"'
+          && header.charAt(valueEnd - 1) == '"') {
+        valueStart++;
+        valueEnd--;
+      }
+      int nameLength = nameEnd - nameStart;
+      if (userId == null && nameLength == first.length()
+          && header.regionMatches(nameStart, first, 0, nameLength)) {
+        userId = header.substring(valueStart, valueEnd);
+      } else if (second != null && token == null && nameLength == second.length()
+          && header.regionMatches(nameStart, second, 0, nameLength)) {
+        token = header.substring(valueStart, valueEnd);
+      }
+      if (userId != null && (second == null || token != null)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.apphosting.api.ApiProxy;
+import com.google.walkaround.slob.server.InvalidStoreRequestException;
+import com.google.walkaround.wave.server.auth.NeedNewOAuthTokenException;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Retries an outbound call that failed transiently, with a timeout, a connection problem or a 5xx
+ * response, with jittered exponential backoff, for as long as the remaining request deadline
+ * allows another attempt. A 4xx answer, such as invalid_grant for an authorization code that was
+ * already used, fails at once.
+ */
+class DeadlineRetry {
+
+  /** One attempt of the call. */
+  interface Attempt<T> {
+    T run() throws IOException;
+  }
+
+  static final int MAX_ATTEMPTS = 5;
+  static final long INITIAL_BACKOFF_MILLIS = 100;
+  static final long MAX_BACKOFF_MILLIS = 2000;
+  /** Time left to the handler for writing a response after the last attempt. */
+  static final long RESERVE_MILLIS = 5000;
+
+  private static final Logger log = Logger.getLogger(DeadlineRetry.class.getName());
+  private static final Random random = new Random();
+
+  /**
+   * @return the result of the first attempt that succeeds
+   * @throws IOException of the first attempt refused with a 4xx, or of the last attempt, once
+   *         {@link #MAX_ATTEMPTS} attempts failed or the request deadline leaves no time for
+   *         another one
+   */
+  static <T> T call(String description, Attempt<T> attempt) throws IOException {
+    long backoffMillis = INITIAL_BACKOFF_MILLIS;
+    for (int i = 1;; i++) {
+      long start = System.currentTimeMillis();
+      try {
+        T result = attempt.run();
+        log.info(description + ": attempt " + i + " succeeded in "
+            + (System.currentTimeMillis() - start) + "ms");
+        return result;
+      } catch (OutboundBreakers.RejectedException e) {
+        // Retrying cannot help until the breaker lets calls through again.
+        log.warning(description + ": attempt " + i + " rejected: " + e.getMessage());
+        throw e;
+      } catch (NeedNewOAuthTokenException e) {
+        // What OAuthProvider.Helper makes of a 4xx from the token endpoint.
+        log.warning(description + ": attempt " + i + " refused: " + e.getMessage());
+        throw e;
+      } catch (InvalidStoreRequestException e) {
+        // HttpRequestBuilder's 4xx.
+        log.warning(description + ": attempt " + i + " refused: " + e.getMessage());
+        throw e;
+      } catch (IOException e) {
+        if (e instanceof HttpResponseException
+            && ((HttpResponseException) e).getStatusCode() < 500) {
+          log.warning(description + ": attempt " + i + " refused: " + e.getMessage());
+          throw e;
+        }
+        long elapsedMillis = System.currentTimeMillis() - start;
+        // Half fixed, half random, so that callers failing together do not retry together.
+        long sleepMillis = backoffMillis / 2 + (long) (random.nextDouble() * (backoffMillis / 2));
+        long remainingMillis = remainingMillis() - RESERVE_MILLIS;
+        if (i >= MAX_ATTEMPTS || sleepMillis + elapsedMillis > remainingMillis) {
+          log.log(Level.WARNING, description + ": attempt " + i + " failed after "
+              + elapsedMillis + "ms; giving up with " + remainingMillis + "ms left", e);
+          throw e;
+        }
+        log.log(Level.WARNING, description + ": attempt " + i + " failed after " + elapsedMillis
+            + "ms; retrying in " + sleepMillis + "ms", e);
+        try {
+          Thread.sleep(sleepMillis);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new IOException(description + ": interrupted during backoff", ie);
+        }
+        backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+      }
+    }
+  }
+
+  /** @return the time left until the deadline of the current request. */
+  static long remainingMillis() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    return environment == null ? Long.MAX_VALUE : environment.getRemainingMillis();
+  }
+
+  private DeadlineRetry() {
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates {@code application/x-www-form-urlencoded} key/value pairs directly into a growable
+ * buffer of UTF-8 bytes, without building intermediate strings.
+ *
+ * Everything except ASCII letters, digits and {@code -_.*} is percent-escaped, and spaces become
+ * {@code %20}, so the output is also safe to use as a URL query string.
+ */
+final class FormEncoder {
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes(Charsets.US_ASCII);
+
+  /**
+   * Escapes a single query string component. Returns {@code s} itself if nothing needs
+   * escaping.
+   */
+  static String escape(String s) {
+    int i = 0;
+    while (i < s.length() && isSafe(s.charAt(i))) {
+      i++;
+    }
+    if (i == s.length()) {
+      return s;
+    }
+    FormEncoder encoder = new FormEncoder(s.length() + 16);
+    encoder.appendEscaped(s);
+    return encoder.toAsciiString();
+  }
+
+  private static boolean isSafe(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-'
+        || c == '_' || c == '.' || c == '*';
+  }
+
+  private byte[] buf;
+  private int count;
+
+  FormEncoder() {
+    this(128);
+  }
+
+  FormEncoder(int initialCapacity) {
+    buf = new byte[initialCapacity];
+  }
+
+  /** Appends {@code key=value}, preceded by {@code &} unless this is the first pair. */
+  FormEncoder add(String key, String value) {
+    if (count > 0) {
+      append('&');
+    }
+    appendEscaped(key);
+    append('=');
+    appendEscaped(value);
+    return this;
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  int size() {
+    return count;
+  }
+
+  /** Returns the encoded bytes, copying only if the buffer is not exactly full. */
+  byte[] toByteArray() {
+    return count == buf.length ? buf : Arrays.copyOf(buf, count);
+  }
+
+  String toAsciiString() {
+    return new String(buf, 0, count, Charsets.US_ASCII);
+  }
+
+  @Override
+  public String toString() {
+    return toAsciiString();
+  }
+
+  private void append(char c) {
+    ensureCapacity(1);
+    buf[count++] = (byte) c;
+  }
+
+  private void appendEscaped(String s) {
+    // Most values need no escaping: reserve one byte per char, and more only on escaping.
+    ensureCapacity(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (isSafe(c)) {
+        buf[count++] = (byte) c;
+        continue;
+      }
+      // Up to 12 bytes for this char (a surrogate pair is 4 UTF-8 bytes, each escaped as %XX),
+      // and still one byte for each char after it.
+      ensureCapacity(s.length() - i + 11);
+      if (c < 0x80) {
+        appendPercent(c);
+      } else if (c < 0x800) {
+        appendPercent(0xC0 | (c >> 6));
+        appendPercent(0x80 | (c & 0x3F));
+      } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+        appendPercent(0xE0 | (c >> 12));
+        appendPercent(0x80 | ((c >> 6) & 0x3F));
+        appendPercent(0x80 | (c & 0x3F));
+      } else {
+        if (!Character.isHighSurrogate(c) || i + 1 == s.length()
+            || !Character.isLowSurrogate(s.charAt(i + 1))) {
+          throw new IllegalArgumentException("Unpaired surrogate at index " + i + " of " + s);
+        }
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        appendPercent(0xF0 | (cp >> 18));
+        appendPercent(0x80 | ((cp >> 12) & 0x3F));
+        appendPercent(0x80 | ((cp >> 6) & 0x3F));
+        appendPercent(0x80 | (cp & 0x3F));
+      }
+    }
+  }
+
+  private void appendPercent(int b) {
+    buf[count++] = '%';
+    buf[count++] = HEX[(b >> 4) & 0xF];
+    buf[count++] = HEX[b & 0xF];
+  }
+
+  private void ensureCapacity(int extra) {
+    if (count + extra > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+    }
+  }
+}
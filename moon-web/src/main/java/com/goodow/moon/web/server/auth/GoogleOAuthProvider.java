@@ -36,15 +36,18 @@ import java.util.logging.Logger;
 
 public class GoogleOAuthProvider implements OAuthProvider {
   private static final Logger log = Logger.getLogger(GoogleOAuthProvider.class.getName());
+  private static final String USER_INFO_URL = "https://www.googleapis.com/oauth2/v1/userinfo";
   private final Provider<OAuthedFetchService> fetch;
+  private final OutboundBreakers breakers;
   private final String clientId;
   private final String clientSecret;
 
   @Inject
-  GoogleOAuthProvider(Provider<OAuthedFetchService> fetch,
+  GoogleOAuthProvider(Provider<OAuthedFetchService> fetch, OutboundBreakers breakers,
       @Flag(FlagName.OAUTH_CLIENT_ID) String clientId,
       @Flag(FlagName.OAUTH_CLIENT_SECRET) String clientSecret) {
     this.fetch = fetch;
+    this.breakers = breakers;
     this.clientId = clientId;
     this.clientSecret = clientSecret;
   }
@@ -81,21 +84,26 @@ public class GoogleOAuthProvider implements OAuthProvider {
 
   @Override
   public AccountStore.Record getUserInfo() throws IOException {
-    URL targetUrl;
+    URL targetUrl = new URL(USER_INFO_URL);
+    OutboundBreakers.Permit permit = breakers.acquire(targetUrl.getHost());
     try {
-      targetUrl = new URL("https://www.googleapis.com/oauth2/v1/userinfo");
       HTTPResponse resp =
           fetch.get().fetch(
-              new HTTPRequest(targetUrl, HTTPMethod.GET, FetchOptions.Builder.withDefaults()
-                  .disallowTruncate()));
+              new HTTPRequest(targetUrl, HTTPMethod.GET, FetchOptions.Builder.withDeadline(
+                  breakers.getDeadlineSeconds()).disallowTruncate()));
       String body = OAuthedFetchService.getUtf8ResponseBody(resp, EXPECTED_CONTENT_TYPE);
       JSONObject jsonObject;
       jsonObject = new JSONObject(body);
       return new AccountStore.Record(new StableUserId(getProviderName().charAt(0)
           + jsonObject.getString("id")), ParticipantId.ofUnsafe(jsonObject.getString("email")),
           null);
+    } catch (IOException e) {
+      permit.fail();
+      throw e;
     } catch (JSONException e) {
       throw new RuntimeException("Bad Json Format: ", e);
+    } finally {
+      permit.release();
     }
   }
 
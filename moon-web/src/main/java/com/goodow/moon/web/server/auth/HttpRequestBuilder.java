@@ -13,6 +13,8 @@
  */
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.StructuredLog;
+
 import com.google.appengine.api.urlfetch.FetchOptions;
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPMethod;
@@ -20,7 +22,6 @@ import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.appengine.api.urlfetch.HTTPResponse;
 import com.google.appengine.api.urlfetch.URLFetchService;
 import com.google.common.base.Charsets;
-import com.google.common.net.UriEscapers;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.walkaround.slob.server.InvalidStoreRequestException;
@@ -30,21 +31,25 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Logger;
 
 public class HttpRequestBuilder {
-  private static final Logger log = Logger.getLogger(HttpRequestBuilder.class.getName());
-  private final StringBuilder urlBuilder = new StringBuilder();
-  private final StringBuilder contentBuilder = new StringBuilder();
+  private static final StructuredLog log = StructuredLog.get(HttpRequestBuilder.class, "http");
+  /** Error messages include at most this much of a response body. */
+  private static final int MAX_DESCRIBED_BODY_BYTES = 1024;
+  private final FormEncoder urlParams = new FormEncoder();
+  private final FormEncoder postParams = new FormEncoder();
   private List<HTTPHeader> headers;
   private final URLFetchService fetchService;
   public static final String GOODOW_TRUSTED_HEADER = "X-Goodow-Trusted";
   private final Provider<UserContext> userContext;
+  private final OutboundBreakers breakers;
 
   @Inject
-  HttpRequestBuilder(URLFetchService fetchService, Provider<UserContext> userContext) {
+  HttpRequestBuilder(URLFetchService fetchService, Provider<UserContext> userContext,
+      OutboundBreakers breakers) {
     this.fetchService = fetchService;
     this.userContext = userContext;
+    this.breakers = breakers;
   }
 
   public HttpRequestBuilder addHeader(String name, String value) {
@@ -61,7 +66,7 @@ public class HttpRequestBuilder {
   }
 
   public HTTPRequest getRequest(String base, HTTPMethod method) throws MalformedURLException {
-    URL url = new URL(base + urlBuilder.toString());
+    URL url = new URL(urlParams.isEmpty() ? base : base + "?" + urlParams.toAsciiString());
     HTTPRequest req =
         new HTTPRequest(url, method == null ? HTTPMethod.POST : method, getFetchOptions());
 
@@ -74,47 +79,56 @@ public class HttpRequestBuilder {
         }
       }
       // req.setHeader(new HTTPHeader(WALKAROUND_TRUSTED_HEADER, secret.getHexData()));
-      req.setPayload(contentBuilder.toString().getBytes(Charsets.UTF_8));
+      req.setPayload(postParams.toByteArray());
     }
     return req;
   }
 
   public HttpRequestBuilder postParam(String key, String value) {
-    contentBuilder.append(key + "=" + urlEncode(value) + "&");
+    postParams.add(key, value);
     return this;
   }
 
   /**
    * @return the response body as a String.
    * @throws IOException for 500 or above or general connection problems.
+   * @throws OutboundBreakers.RejectedException without sending if the host is failing or busy.
    * @throws InvalidStoreRequestException for any response code not 200.
    */
   public String send(String base, HTTPMethod method) throws IOException {
     HTTPRequest req = getRequest(base, method);
-    log.info("Sending to " + req.getURL());
-    String ret = fetch(req);
-    log.info("Request completed");
-    return ret;
+    OutboundBreakers.Permit permit = breakers.acquire(req.getURL().getHost());
+    long start = System.currentTimeMillis();
+    try {
+      String ret = checkResponse(req, fetchService.fetch(req));
+      log.info("fetch", "url", req.getURL(), "millis", System.currentTimeMillis() - start);
+      return ret;
+    } catch (IOException e) {
+      permit.fail();
+      throw e;
+    } finally {
+      permit.release();
+    }
   }
 
   public HttpRequestBuilder urlParam(String key, String value) {
-    urlBuilder.append((urlBuilder.length() == 0 ? "?" : "&") + key + "=" + urlEncode(value));
+    urlParams.add(key, value);
     return this;
   }
 
-  private String describeResponse(HTTPResponse resp) {
+  private static String describeResponse(HTTPResponse resp) {
+    byte[] content = resp.getContent();
     StringBuilder b =
-        new StringBuilder(resp.getResponseCode() + " with " + resp.getContent().length
-            + " bytes of content");
+        new StringBuilder().append(resp.getResponseCode()).append(" with ").append(
+            content == null ? 0 : content.length).append(" bytes of content");
     for (HTTPHeader h : resp.getHeaders()) {
-      b.append("\n" + h.getName() + ": " + h.getValue());
+      b.append('\n').append(h.getName()).append(": ").append(h.getValue());
     }
-    b.append("\n" + new String(resp.getContent(), Charsets.UTF_8));
-    return "" + b;
+    b.append('\n').append(decode(content, MAX_DESCRIBED_BODY_BYTES));
+    return b.toString();
   }
 
-  private String fetch(HTTPRequest req) throws IOException {
-    HTTPResponse response = fetchService.fetch(req);
+  private static String checkResponse(HTTPRequest req, HTTPResponse response) throws IOException {
     int responseCode = response.getResponseCode();
 
     if (responseCode >= 300 && responseCode < 400) {
@@ -122,16 +136,10 @@ public class HttpRequestBuilder {
           + describeResponse(response));
     }
 
-    byte[] rawResponseBody = response.getContent();
-    String responseBody;
-    if (rawResponseBody == null) {
-      responseBody = "";
-    } else {
-      responseBody = new String(rawResponseBody, Charsets.UTF_8);
-    }
-
     if (responseCode != 200) {
-      String msg = req.getURL() + " gave response code " + responseCode + ", body: " + responseBody;
+      String msg =
+          req.getURL() + " gave response code " + responseCode + ", body: "
+              + decode(response.getContent(), MAX_DESCRIBED_BODY_BYTES);
       if (responseCode >= 500) {
         throw new IOException(msg);
       } else {
@@ -139,15 +147,21 @@ public class HttpRequestBuilder {
       }
     }
 
-    return responseBody;
+    return decode(response.getContent(), Integer.MAX_VALUE);
   }
 
-  private FetchOptions getFetchOptions() {
-    FetchOptions options = FetchOptions.Builder.disallowTruncate().doNotFollowRedirects();
-    return options;
+  /** Decodes at most {@code maxBytes} of {@code content} as UTF-8. */
+  private static String decode(byte[] content, int maxBytes) {
+    if (content == null || content.length == 0) {
+      return "";
+    }
+    return new String(content, 0, Math.min(content.length, maxBytes), Charsets.UTF_8);
   }
 
-  private String urlEncode(String s) {
-    return UriEscapers.uriQueryStringEscaper(false).escape(s);
+  private FetchOptions getFetchOptions() {
+    FetchOptions options =
+        FetchOptions.Builder.disallowTruncate().doNotFollowRedirects().setDeadline(
+            breakers.getDeadlineSeconds());
+    return options;
   }
 }
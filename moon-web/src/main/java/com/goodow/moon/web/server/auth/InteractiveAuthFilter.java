@@ -13,6 +13,8 @@
  */
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.stats.RequestStats;
+
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -36,13 +38,15 @@ public class InteractiveAuthFilter extends
 
   private final Provider<TokenBasedAccountLookup> accountLookup;
   private final Provider<ServletAuthHelper> helper;
+  private final Provider<UserContext> userCtx;
 
   @Inject
   public InteractiveAuthFilter(Provider<TokenBasedAccountLookup> accountLookup,
-      Provider<ServletAuthHelper> helper) {
+      Provider<ServletAuthHelper> helper, Provider<UserContext> userCtx) {
     super(null, null, null);
     this.accountLookup = accountLookup;
     this.helper = helper;
+    this.userCtx = userCtx;
   }
 
   @Override
@@ -51,13 +55,25 @@ public class InteractiveAuthFilter extends
     final HttpServletRequest req = (HttpServletRequest) request;
     final HttpServletResponse resp = (HttpServletResponse) response;
 
+    long start = System.nanoTime();
     TokenBasedAccountLookup lookup = accountLookup.get();
-    if (!lookup.isUserLoggedIn(req)) {
+    boolean loggedIn = lookup.isUserLoggedIn(req);
+    RequestStats.recordStage("InteractiveAuthFilter", System.nanoTime() - start);
+    if (!loggedIn) {
       TokenBasedAccountLookup.redirectToLoginPage(req, resp);
       return;
     }
 
-    helper.get().filter(req, resp, filterChain, lookup,
+    if (lookup.sessionUserId() != null) {
+      if (!lookup.filterSession(userCtx.get(), req, resp,
+          RequestStats.timeUntilChain("SessionToken", filterChain))) {
+        TokenBasedAccountLookup.redirectToLoginPage(req, resp);
+      }
+      return;
+    }
+
+    helper.get().filter(req, resp,
+        RequestStats.timeUntilChain("ServletAuthHelper", filterChain), lookup,
         new ServletAuthHelper.NeedNewOAuthTokenHandler() {
           @Override
           public void sendNeedTokenResponse() throws IOException {
@@ -14,6 +14,8 @@
 
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.StaticAssets;
+import com.goodow.moon.web.server.StructuredLog;
 import com.goodow.moon.web.server.gxp.Login;
 
 import com.google.inject.Inject;
@@ -21,17 +23,17 @@ import com.google.walkaround.util.server.servlet.AbstractHandler;
 import com.google.walkaround.wave.server.servlet.PageSkinWriter;
 
 import java.io.IOException;
-import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 public class LoginHandler extends AbstractHandler {
 
-  private static final Logger log = Logger.getLogger(LoginHandler.class.getName());
+  private static final StructuredLog log = StructuredLog.get(LoginHandler.class, "oauth");
 
   @Inject OAuthProvider.Helper oAuthProvider;
   @Inject PageSkinWriter pageSkinWriter;
+  @Inject StaticAssets staticAssets;
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -40,12 +42,12 @@ public class LoginHandler extends AbstractHandler {
     String authorizeUrl = oAuthProvider.getAuthorizationEndpointUrl("google", state);
     String authorizeUrlQq = oAuthProvider.getAuthorizationEndpointUrl("qq", state);
 
-    log.info("originalRequest=" + originalRequest + ", authorizeUrl=" + authorizeUrl);
+    log.info("login", "originalRequest", originalRequest, "authorizeUrl", authorizeUrl);
 
     resp.setContentType("text/html");
     resp.setCharacterEncoding("UTF-8");
     pageSkinWriter.write("登入", "", Login.getGxpClosure(authorizeUrl, authorizeUrlQq,
-        originalRequest));
+        originalRequest, staticAssets.url("/favicon.ico")));
   }
 
 }
@@ -19,6 +19,7 @@ import com.google.inject.Inject;
 import com.google.walkaround.util.server.servlet.AbstractHandler;
 import com.google.walkaround.wave.server.Flag;
 import com.google.walkaround.wave.server.FlagName;
+import com.google.walkaround.wave.server.auth.StableUserId;
 import com.google.walkaround.wave.server.gxp.AuthPopup;
 
 import java.io.IOException;
@@ -43,11 +44,17 @@ public class LogoutHandler extends com.google.walkaround.wave.server.servlet.Log
   @SuppressWarnings("unused") private static final Logger log = Logger
       .getLogger(LogoutHandler.class.getName());
 
+  @Inject SessionCache sessionCache;
+
   public LogoutHandler() {
   }
 
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String userId = TokenBasedAccountLookup.getCookie(req, TokenBasedAccountLookup.USER_ID_KEY);
+    if (userId != null) {
+      sessionCache.invalidate(new StableUserId(userId));
+    }
     if (req.getParameter("switchUser") != null) {
       super.doGet(req, resp);
     } else {
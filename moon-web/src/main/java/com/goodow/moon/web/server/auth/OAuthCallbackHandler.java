@@ -14,13 +14,13 @@
 
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.StructuredLog;
+
 import com.google.api.client.http.HttpResponseException;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
-import com.google.common.net.UriEscapers;
 import com.google.gxp.base.GxpContext;
 import com.google.inject.Inject;
-import com.google.inject.Provider;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.appengine.MemcacheTable;
 import com.google.walkaround.util.server.servlet.BadRequestException;
@@ -28,9 +28,9 @@ import com.google.walkaround.wave.server.Flag;
 import com.google.walkaround.wave.server.FlagName;
 import com.google.walkaround.wave.server.auth.AccountStore;
 import com.google.walkaround.wave.server.auth.AccountStore.Record;
+import com.google.walkaround.wave.server.auth.NeedNewOAuthTokenException;
 import com.google.walkaround.wave.server.auth.OAuthCredentials;
 import com.google.walkaround.wave.server.auth.StableUserId;
-import com.google.walkaround.wave.server.auth.XsrfHelper;
 import com.google.walkaround.wave.server.gxp.AuthPopup;
 
 import org.json.JSONException;
@@ -40,8 +40,6 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.Cookie;
@@ -51,12 +49,12 @@ import javax.servlet.http.HttpServletResponse;
 public class OAuthCallbackHandler extends
     com.google.walkaround.wave.server.auth.OAuthCallbackHandler {
 
-  private static final String EMAIL = "email";
-  private static final String ACCESS_TOKEN = "access_token";
-  private static final Logger log = Logger.getLogger(OAuthCallbackHandler.class.getName());
+  static final String EMAIL = "email";
+  static final String ACCESS_TOKEN = "access_token";
+  private static final StructuredLog log = StructuredLog.get(OAuthCallbackHandler.class, "oauth");
 
   private static String queryEncode(String s) {
-    return UriEscapers.uriQueryStringEscaper(false).escape(s);
+    return FormEncoder.escape(s);
   }
 
   @Inject AccountStore accountStore;
@@ -64,8 +62,9 @@ public class OAuthCallbackHandler extends
   @Inject @Flag(FlagName.ANALYTICS_ACCOUNT) String analyticsAccount;
   @Inject OAuthProvider.Helper oAuthProviderHelp;
   @Inject Map<String, OAuthProvider> oAuthProviders;
-  @Inject Provider<XsrfHelper> xsrfHelper;
   @Inject @Flag(FlagName.XSRF_TOKEN_EXPIRY_SECONDS) int expirySeconds;
+  @Inject SessionCache sessionCache;
+  @Inject TokenIssuer tokenIssuer;
 
   private final MemcacheTable<String, StableUserId> authorizedCodes;
 
@@ -79,40 +78,50 @@ public class OAuthCallbackHandler extends
     String errorCode = req.getParameter("error");
     if (errorCode != null) {
       String errorDescription = req.getParameter("error_description");
-      log.info("error: " + errorCode + ", description: " + errorDescription);
+      log.info("oauthError", "error", errorCode, "description", errorDescription);
       String errorMessage;
       if ("access_denied".equals(errorCode)) {
         errorMessage = "请点击上面任一按钮, 在新页面登录, 然后允许访问.";
       } else {
         errorMessage = "An error occured (" + errorCode + "): " + errorDescription;
       }
-      log.info("errorMessage=" + errorMessage);
       writeRegularError(req, resp, errorMessage);
       return;
     }
 
     String code = requireParameter(req, "code");
     String state = requireParameter(req, "state");
-    log.info("code=" + code + ", state=" + state);
+    log.info("oauthCallback", "code", code, "state", state);
     String[] split = state.split(" ");
     if (split.length != 2) {
       throw new BadRequestException("state格式错误: " + state);
     }
+    final String providerName = split[0];
+    final String authorizationCode = code;
     OAuthCredentials credentials;
     try {
-      credentials = oAuthProviderHelp.exchangeCodeForToken(split[0], code);
+      credentials =
+          DeadlineRetry.call("Token exchange with " + providerName,
+              new DeadlineRetry.Attempt<OAuthCredentials>() {
+                @Override
+                public OAuthCredentials run() throws IOException {
+                  return oAuthProviderHelp.exchangeCodeForToken(providerName, authorizationCode);
+                }
+              });
+    } catch (NeedNewOAuthTokenException e) {
+      // The code was refused, e.g. because it was already used; only a new login can help.
+      writeRegularError(req, resp, "登录已失效, 请重新登录.");
+      return;
     } catch (IOException e) {
-      log.log(Level.WARNING, "Failed attempt, trying again", e);
       if (e instanceof HttpResponseException) {
         HttpResponseException f = (HttpResponseException) e;
         ByteArrayOutputStream o = new ByteArrayOutputStream();
         f.getResponse().getRequest().getContent().writeTo(o);
         // TODO(ohler): Use correct character set.
-        log.warning("content of rejected request: " + o.toString());
-        log.warning("rejection response body: " + f.getResponse().parseAsString());
+        log.warning("tokenExchangeRejected", null, "request", o, "response", f.getResponse()
+            .parseAsString());
       }
-      resp.sendRedirect(req.getRequestURI() + "?code=" + urlEncode(code) + "&state="
-          + urlEncode(state) + "&tryagain=true");
+      writeRegularError(req, resp, "登录服务暂时不可用, 请稍后再试.");
       return;
     }
 
@@ -127,12 +136,15 @@ public class OAuthCallbackHandler extends
     Record userInfo = userContext.getOAuthProvider().getUserInfo();
     userContext.setUserId(userInfo.getUserId());
     userContext.setParticipantId(userInfo.getParticipantId());
-    log.info("User context: " + userContext);
+    log.info("oauthUser", "userId", userContext.getUserId(), "participant", userContext
+        .getParticipantId(), "provider", providerName);
     writeAccountRecordFromContext();
     authorizedCodes.put(split[1], userInfo.getUserId(), Expiration.byDeltaSeconds(30),
         SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
 
-    String token = xsrfHelper.get().createToken(userContext.getOAuthCredentials().getAccessToken());
+    String token =
+        tokenIssuer.issue(userInfo.getUserId(), userInfo.getParticipantId(), userContext
+            .getOAuthCredentials().getAccessToken());
     if (split[1].startsWith("apps")) {
       responseSuccessForInstalledApps(req, resp, token);
     } else {
@@ -159,7 +171,8 @@ public class OAuthCallbackHandler extends
 
         toRtn.put(TokenBasedAccountLookup.USER_ID_KEY, userId.getId());
         toRtn.put(EMAIL, participantId.getAddress());
-        toRtn.put(ACCESS_TOKEN, xsrfHelper.get().createToken(oAuthCredentials.getAccessToken()));
+        toRtn.put(ACCESS_TOKEN, tokenIssuer.issue(userId, participantId, oAuthCredentials
+            .getAccessToken()));
       } catch (JSONException e) {
         throw new RuntimeException("Bad JSON: " + toRtn, e);
       }
@@ -195,10 +208,6 @@ public class OAuthCallbackHandler extends
     AuthPopup.write(resp.getWriter(), new GxpContext(getLocale(req)), analyticsAccount, null);
   }
 
-  private String urlEncode(String s) {
-    return UriEscapers.uriQueryStringEscaper(false).escape(s);
-  }
-
   private AccountStore.Record verify(String clientId, String clientSecret, String code)
       throws IOException {
     if (!oAuthProviders.get("google").getClientId().equals(clientId)
@@ -225,6 +234,7 @@ public class OAuthCallbackHandler extends
     } catch (PermanentFailure e) {
       throw new IOException("Failed to write account record", e);
     }
+    sessionCache.invalidate(userContext.getUserId());
   }
 
   private void writeRegularError(HttpServletRequest req, HttpServletResponse resp,
@@ -13,8 +13,9 @@
  */
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.StructuredLog;
+
 import com.google.appengine.api.urlfetch.HTTPMethod;
-import com.google.common.net.UriEscapers;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.walkaround.slob.server.InvalidStoreRequestException;
@@ -30,22 +31,36 @@ import org.waveprotocol.wave.model.util.Pair;
 
 import java.io.IOException;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
 
 public interface OAuthProvider {
   public static class Helper {
-    private static final Logger log = Logger.getLogger(Helper.class.getName());
+    /** What a token endpoint granted. */
+    public static final class TokenResponse {
+      public final String accessToken;
+      @Nullable public final String refreshToken;
+      /** Lifetime of {@link #accessToken} the provider announced, or -1 if it did not. */
+      public final long expiresInSeconds;
+
+      TokenResponse(String accessToken, @Nullable String refreshToken, long expiresInSeconds) {
+        this.accessToken = accessToken;
+        this.refreshToken = refreshToken;
+        this.expiresInSeconds = expiresInSeconds;
+      }
+    }
+
+    private static final StructuredLog log = StructuredLog.get(Helper.class, "oauth");
 
     public static void urlParam(StringBuilder sb, String key, String value) {
       if (value == null || value.isEmpty()) {
         return;
       }
-      sb.append(key + "=" + queryEncode(value) + "&");
+      sb.append(key).append('=').append(queryEncode(value)).append('&');
     }
 
     private static String queryEncode(String s) {
-      return UriEscapers.uriQueryStringEscaper(false).escape(s);
+      return FormEncoder.escape(s);
     }
 
     @Inject @CallbackPath String callbackUrl;
@@ -55,9 +70,10 @@ public interface OAuthProvider {
 
     public OAuthCredentials exchangeCodeForToken(String providerName, String authorizationCode)
         throws IOException {
-      Pair<String, String> pair = exchangeCodeForToken(providerName, authorizationCode, false);
+      TokenResponse token = exchangeCodeForToken(providerName, authorizationCode, false);
       OAuthCredentials credentials =
-          new OAuthCredentials(pair.second == null ? "" : pair.second, pair.first);
+          new OAuthCredentials(token.refreshToken == null ? "" : token.refreshToken,
+              token.accessToken);
       return credentials;
     }
 
@@ -75,12 +91,26 @@ public interface OAuthProvider {
       return sb.toString();
     }
 
-    public String refreshToken(String providerName, String refreshToken) throws IOException {
-      Pair<String, String> pair = exchangeCodeForToken(providerName, refreshToken, true);
-      return pair.first;
+    public TokenResponse refreshToken(String providerName, String refreshToken)
+        throws IOException {
+      return exchangeCodeForToken(providerName, refreshToken, true);
+    }
+
+    /** @return the expires_in parameter of a form-encoded token response, or -1. */
+    private static long formExpiresIn(String content) {
+      for (String kv : content.split("&")) {
+        if (kv.startsWith("expires_in=")) {
+          try {
+            return Long.parseLong(kv.substring("expires_in=".length()).trim());
+          } catch (NumberFormatException e) {
+            return -1;
+          }
+        }
+      }
+      return -1;
     }
 
-    private Pair<String, String> exchangeCodeForToken(String providerName,
+    private TokenResponse exchangeCodeForToken(String providerName,
         String codeOrRefreshToken, boolean isRefresh) throws IOException {
       OAuthProvider oAuthProvider = oAuthProviders.get(providerName);
       HttpRequestBuilder req = postRequest.get();
@@ -97,30 +127,31 @@ public interface OAuthProvider {
 
       String content = null;
       try {
-        log.info("Trying to exchange OAuth token; isRefresh: " + isRefresh);
+        log.info("tokenExchange", "provider", providerName, "isRefresh", isRefresh);
         content = req.send(oAuthProvider.getTokenEndpoint(), HTTPMethod.POST);
       } catch (InvalidStoreRequestException e) {
         // if (isRefresh) {
-        log.log(Level.WARNING, "exchangeCodeForToken() failed; perhaps revoked", e);
+        log.warning("tokenExchangeFailed", e, "provider", providerName, "cause", "perhaps revoked");
         throw new NeedNewOAuthTokenException("exchangeCodeForToken() failed; perhaps revoked", e);
         // }
       }
 
       Pair<String, String> pair = oAuthProvider.parseNonStandardTokenResponse(content);
       if (pair != null) {
-        return pair;
+        return new TokenResponse(pair.first, pair.second, formExpiresIn(content));
       }
       try {
         JSONObject jsonObject = new JSONObject(content);
-        log.info(oAuthProvider.getTokenEndpoint() + " gave response body: " + jsonObject.toString());
+        log.info("tokenResponse", "endpoint", oAuthProvider.getTokenEndpoint(), "body", jsonObject);
         if (!jsonObject.has("access_token")) {
           throw new RuntimeException("No access token provided after exchangeOAuthCredentials");
         }
-        return Pair.of(jsonObject.getString("access_token"), jsonObject.has("refresh_token")
-            ? jsonObject.getString("refresh_token") : null);
+        return new TokenResponse(jsonObject.getString("access_token"), jsonObject
+            .has("refresh_token") ? jsonObject.getString("refresh_token") : null, jsonObject
+            .optLong("expires_in", -1));
       } catch (JSONException e) {
         // if (isRefresh) {
-        log.log(Level.WARNING, "exchangeCodeForToken() failed; perhaps revoked", e);
+        log.warning("tokenExchangeFailed", e, "provider", providerName, "cause", "perhaps revoked");
         throw new NeedNewOAuthTokenException("exchangeCodeForToken() failed; perhaps revoked", e);
         // }
       }
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Resolves the {@link OAuthProvider} of a user from the first character of the user id, which is
+ * the first character of the provider's name.
+ *
+ * The table is indexed by that character and built from the provider {@code MapBinder} when the
+ * injector is created; two providers whose names start with the same character are rejected
+ * there.
+ */
+@Singleton
+public class OAuthProviderRegistry {
+  private static final int TABLE_SIZE = 128;
+
+  /** Replaced on each registration, so lookups need no lock. */
+  private volatile Provider<? extends OAuthProvider>[] byPrefix;
+  private final String[] names = new String[TABLE_SIZE];
+
+  @SuppressWarnings("unchecked")
+  @Inject
+  OAuthProviderRegistry(Map<String, Provider<OAuthProvider>> providers) {
+    byPrefix = new Provider[TABLE_SIZE];
+    for (Map.Entry<String, Provider<OAuthProvider>> e : providers.entrySet()) {
+      register(e.getKey(), e.getValue());
+    }
+  }
+
+  /**
+   * Adds a provider for the user ids starting with the first character of {@code name}.
+   *
+   * @throws IllegalStateException if another provider already claims that character
+   */
+  public synchronized void register(String name, Provider<? extends OAuthProvider> provider) {
+    char prefix = name.charAt(0);
+    if (prefix >= TABLE_SIZE) {
+      throw new IllegalArgumentException("OAuth provider name must start with ASCII: " + name);
+    }
+    if (names[prefix] != null) {
+      throw new IllegalStateException("OAuth providers " + names[prefix] + " and " + name
+          + " share the user id prefix '" + prefix + "'");
+    }
+    Provider<? extends OAuthProvider>[] table = byPrefix.clone();
+    table[prefix] = provider;
+    names[prefix] = name;
+    byPrefix = table;
+  }
+
+  /** @return the provider that issued {@code userId}, or null if there is none. */
+  @Nullable
+  public OAuthProvider forUserId(String userId) {
+    if (userId.isEmpty()) {
+      return null;
+    }
+    char prefix = userId.charAt(0);
+    if (prefix >= TABLE_SIZE) {
+      return null;
+    }
+    Provider<? extends OAuthProvider> provider = byPrefix[prefix];
+    return provider == null ? null : provider.get();
+  }
+}
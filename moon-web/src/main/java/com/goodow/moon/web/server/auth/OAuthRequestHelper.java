@@ -14,27 +14,28 @@
 
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.StructuredLog;
+
 import com.google.appengine.api.urlfetch.HTTPHeader;
 import com.google.appengine.api.urlfetch.HTTPRequest;
 import com.google.inject.Inject;
 import com.google.walkaround.wave.server.auth.OAuthCredentials;
 
 import java.io.IOException;
-import java.util.logging.Logger;
 
 public class OAuthRequestHelper extends com.google.walkaround.wave.server.auth.OAuthRequestHelper {
 
-  private static final Logger log = Logger.getLogger(OAuthRequestHelper.class.getName());
+  private static final StructuredLog log = StructuredLog.get(OAuthRequestHelper.class, "oauth");
 
   private final UserContext userContext;
 
-  private final OAuthProvider.Helper oAuthProvider;
+  private final TokenRefresher tokenRefresher;
 
   @Inject
-  public OAuthRequestHelper(UserContext userContext, OAuthProvider.Helper oAuthProvider) {
+  public OAuthRequestHelper(UserContext userContext, TokenRefresher tokenRefresher) {
     super("fakeId", "fakeSecret", userContext);
     this.userContext = userContext;
-    this.oAuthProvider = oAuthProvider;
+    this.tokenRefresher = tokenRefresher;
   }
 
   @Override
@@ -52,11 +53,11 @@ public class OAuthRequestHelper extends com.google.walkaround.wave.server.auth.O
       return;
     }
     String newAccessToken =
-        oAuthProvider.refreshToken(userContext.getOAuthProvider().getProviderName(), refreshToken);
+        tokenRefresher.refresh(userContext.getOAuthProvider().getProviderName(), refreshToken,
+            oldCredentials.getAccessToken());
 
-    log.info("New access token: " + newAccessToken);
     userContext.setOAuthCredentials(new OAuthCredentials(refreshToken, newAccessToken));
-    log.info("Successfully refreshed token: " + userContext);
+    log.info("tokenRefreshed", "userId", userContext.getUserId(), "access_token", newAccessToken);
   }
 
   private OAuthCredentials getCredentials() {
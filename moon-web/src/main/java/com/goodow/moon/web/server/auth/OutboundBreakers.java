@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Guards outbound calls to the OAuth providers with a circuit breaker and a concurrency cap
+ * (bulkhead) per host, so that a slow provider fails fast instead of tying up request threads.
+ *
+ * A breaker opens after {@code outbound_breaker_failures} consecutive failures and rejects calls
+ * for {@code outbound_breaker_open_millis}; then a single trial call decides whether it closes or
+ * stays open. Callers also pass {@link #getDeadlineSeconds} to URLFetch.
+ */
+@Singleton
+public class OutboundBreakers {
+
+  /** Thrown without calling the host when its breaker is open or its bulkhead is full. */
+  public static class RejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Admission of one call. Call {@link #fail} if the host did not answer, and {@link #release}
+   * once the call is over.
+   */
+  public final class Permit {
+    private final Breaker breaker;
+    private final boolean trial;
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile boolean failed;
+
+    Permit(Breaker breaker, boolean trial) {
+      this.breaker = breaker;
+      this.trial = trial;
+    }
+
+    public void fail() {
+      failed = true;
+    }
+
+    public void release() {
+      if (released.compareAndSet(false, true)) {
+        breaker.bulkhead.release();
+        breaker.complete(trial, failed);
+      }
+    }
+  }
+
+  final class Breaker {
+    final String host;
+    final Semaphore bulkhead = new Semaphore(maxConcurrent);
+    final AtomicLong calls = new AtomicLong();
+    final AtomicLong failures = new AtomicLong();
+    final AtomicLong trips = new AtomicLong();
+    final AtomicLong rejectedOpen = new AtomicLong();
+    final AtomicLong rejectedFull = new AtomicLong();
+    // Guarded by this.
+    private int consecutiveFailures;
+    /** 0 while closed. */
+    private long openUntilMillis;
+    private boolean trialInFlight;
+
+    Breaker(String host) {
+      this.host = host;
+    }
+
+    /** @return whether the call is the trial of an open breaker. */
+    synchronized boolean admit() throws RejectedException {
+      if (openUntilMillis == 0) {
+        return false;
+      }
+      if (System.currentTimeMillis() < openUntilMillis || trialInFlight) {
+        rejectedOpen.incrementAndGet();
+        throw new RejectedException("Circuit to " + host + " is open");
+      }
+      trialInFlight = true;
+      return true;
+    }
+
+    synchronized void cancelTrial() {
+      trialInFlight = false;
+    }
+
+    synchronized void complete(boolean trial, boolean failed) {
+      if (trial) {
+        trialInFlight = false;
+      }
+      if (!failed) {
+        consecutiveFailures = 0;
+        if (trial) {
+          openUntilMillis = 0;
+          log.info("Circuit to " + host + " closed");
+        }
+        return;
+      }
+      failures.incrementAndGet();
+      consecutiveFailures++;
+      if (trial || (openUntilMillis == 0 && consecutiveFailures >= failureThreshold)) {
+        openUntilMillis = System.currentTimeMillis() + openMillis;
+        trips.incrementAndGet();
+        log.warning("Circuit to " + host + " opened after " + consecutiveFailures
+            + " consecutive failures");
+      }
+    }
+
+    synchronized String state() {
+      return openUntilMillis == 0 ? "closed" : trialInFlight ? "half-open" : "open";
+    }
+  }
+
+  private static final Logger log = Logger.getLogger(OutboundBreakers.class.getName());
+
+  private final ConcurrentMap<String, Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+  private final double deadlineSeconds;
+  private final int maxConcurrent;
+  private final int failureThreshold;
+  private final long openMillis;
+
+  @Inject
+  OutboundBreakers(@Config(ConfigName.OUTBOUND_DEADLINE_MILLIS) int deadlineMillis,
+      @Config(ConfigName.OUTBOUND_MAX_CONCURRENT) int maxConcurrent,
+      @Config(ConfigName.OUTBOUND_BREAKER_FAILURES) int failureThreshold,
+      @Config(ConfigName.OUTBOUND_BREAKER_OPEN_MILLIS) int openMillis) {
+    this.deadlineSeconds = deadlineMillis / 1000.0;
+    this.maxConcurrent = maxConcurrent;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /** @return the URLFetch deadline for outbound calls. */
+  public double getDeadlineSeconds() {
+    return deadlineSeconds;
+  }
+
+  /**
+   * Admits a call to {@code host}.
+   *
+   * @throws RejectedException right away if the host's breaker is open or all of its permits are
+   *         in use
+   */
+  public Permit acquire(String host) throws RejectedException {
+    Breaker breaker = breakers.get(host);
+    if (breaker == null) {
+      breakers.putIfAbsent(host, new Breaker(host));
+      breaker = breakers.get(host);
+    }
+    boolean trial = breaker.admit();
+    if (!breaker.bulkhead.tryAcquire()) {
+      if (trial) {
+        breaker.cancelTrial();
+      }
+      breaker.rejectedFull.incrementAndGet();
+      throw new RejectedException(maxConcurrent + " calls to " + host + " already in flight");
+    }
+    breaker.calls.incrementAndGet();
+    return new Permit(breaker, trial);
+  }
+
+  /** @return state and counters of each host's breaker. */
+  public JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, Breaker> e : breakers.entrySet()) {
+      Breaker b = e.getValue();
+      JSONObject breaker = new JSONObject();
+      breaker.put("state", b.state());
+      breaker.put("inFlight", maxConcurrent - b.bulkhead.availablePermits());
+      breaker.put("calls", b.calls.get());
+      breaker.put("failures", b.failures.get());
+      breaker.put("trips", b.trips.get());
+      breaker.put("rejectedOpen", b.rejectedOpen.get());
+      breaker.put("rejectedFull", b.rejectedFull.get());
+      json.put(e.getKey(), breaker);
+    }
+    return json;
+  }
+}
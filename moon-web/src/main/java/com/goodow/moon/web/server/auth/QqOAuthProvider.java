@@ -15,6 +15,7 @@ package com.goodow.moon.web.server.auth;
 
 import com.goodow.moon.web.server.ConfigName;
 import com.goodow.moon.web.server.ConfigName.Config;
+import com.goodow.moon.web.server.StructuredLog;
 
 import com.google.appengine.api.urlfetch.HTTPMethod;
 import com.google.inject.Inject;
@@ -31,11 +32,10 @@ import org.waveprotocol.wave.model.wave.ParticipantId;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Logger;
 
 public class QqOAuthProvider implements OAuthProvider {
 
-  private static final Logger log = Logger.getLogger(QqOAuthProvider.class.getName());
+  private static final StructuredLog log = StructuredLog.get(QqOAuthProvider.class, "oauth");
   private final Provider<HttpRequestBuilder> request;
   private final Provider<UserContext> userCtx;
   private final String clientId;
@@ -83,21 +83,21 @@ public class QqOAuthProvider implements OAuthProvider {
 
   @Override
   public Record getUserInfo() throws IOException {
-    // fetch id
-    HttpRequestBuilder req = request.get();
-    String resp =
-        req.authorizeThroughUrlParam().send("https://graph.z.qq.com/moc2/me", HTTPMethod.GET);
-    String id = parameterMap(resp).get("openid");
-    StableUserId userId = new StableUserId(getProviderName().charAt(0) + id);
+    // get_info needs the openid that /moc2/me returns, so the two round trips cannot overlap.
+    String me =
+        request.get().authorizeThroughUrlParam().send("https://graph.z.qq.com/moc2/me",
+            HTTPMethod.GET);
+    String openId = parameterMap(me).get("openid");
+    if (openId == null || openId.isEmpty()) {
+      throw new IOException("No openid in /moc2/me response: " + me);
+    }
+    StableUserId userId = new StableUserId(getProviderName().charAt(0) + openId);
     userCtx.get().setUserId(userId);
 
     // fetch email
     String email = null;
-    req = request.get();
-    req.authorizeThroughUrlParam();
-    extraAuthorizeParams(req);
-    resp = req.send("https://graph.qq.com/user/get_info", HTTPMethod.GET);
-    log.info("getUserInfo() returned: " + resp);
+    String resp = fetchInfo(openId);
+    log.fine("qqUserInfo", "body", resp);
     try {
       JSONObject jsonObject = new JSONObject(resp);
       JSONObject data = jsonObject.getJSONObject("data");
@@ -121,7 +121,7 @@ public class QqOAuthProvider implements OAuthProvider {
    */
   @Override
   public Pair<String, String> parseNonStandardTokenResponse(String response) {
-    log.info("parse token response:" + response);
+    log.info("qqTokenResponse", "body", response);
     Map<String, String> paramMap = parameterMap(response);
     return Pair.of(paramMap.get("access_token"), paramMap.get("refresh_token"));
   }
@@ -132,12 +132,15 @@ public class QqOAuthProvider implements OAuthProvider {
     sb.deleteCharAt(sb.length() - 1);
   }
 
-  private void extraAuthorizeParams(HttpRequestBuilder req) {
+  private String fetchInfo(String openId) throws IOException {
+    HttpRequestBuilder req = request.get();
+    req.authorizeThroughUrlParam();
     req.urlParam("oauth_consumer_key", getClientId());
-    req.urlParam("openid", userCtx.get().getUserId().getId().substring(1));
+    req.urlParam("openid", openId);
+    return req.send("https://graph.qq.com/user/get_info", HTTPMethod.GET);
   }
 
-  private Map<String, String> parameterMap(String response) {
+  static Map<String, String> parameterMap(String response) {
     Map<String, String> paramMap = new HashMap<String, String>();
     for (String kvPair : response.split("&")) {
       String[] kv = kvPair.split("=", 2);
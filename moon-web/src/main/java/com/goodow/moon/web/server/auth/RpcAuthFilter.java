@@ -13,6 +13,8 @@
  */
 package com.goodow.moon.web.server.auth;
 
+import com.goodow.moon.web.server.stats.RequestStats;
+
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
@@ -33,12 +35,15 @@ public class RpcAuthFilter extends com.google.walkaround.wave.server.auth.RpcAut
 
   private final Provider<TokenBasedAccountLookup> accountLookup;
   private final Provider<ServletAuthHelper> helper;
+  private final Provider<UserContext> userCtx;
 
   @Inject
-  RpcAuthFilter(Provider<TokenBasedAccountLookup> accountLookup, Provider<ServletAuthHelper> helper) {
+  RpcAuthFilter(Provider<TokenBasedAccountLookup> accountLookup,
+      Provider<ServletAuthHelper> helper, Provider<UserContext> userCtx) {
     super(null, null);
     this.accountLookup = accountLookup;
     this.helper = helper;
+    this.userCtx = userCtx;
   }
 
   @Override
@@ -47,13 +52,25 @@ public class RpcAuthFilter extends com.google.walkaround.wave.server.auth.RpcAut
     final HttpServletRequest req = (HttpServletRequest) request;
     final HttpServletResponse resp = (HttpServletResponse) response;
 
+    long start = System.nanoTime();
     TokenBasedAccountLookup lookup = accountLookup.get();
-    if (!lookup.isUserLoggedIn(req)) {
+    boolean loggedIn = lookup.isUserLoggedIn(req);
+    RequestStats.recordStage("RpcAuthFilter", System.nanoTime() - start);
+    if (!loggedIn) {
       needLogin(resp);
       return;
     }
 
-    helper.get().filter(req, resp, filterChain, lookup,
+    if (lookup.sessionUserId() != null) {
+      if (!lookup.filterSession(userCtx.get(), req, resp,
+          RequestStats.timeUntilChain("SessionToken", filterChain))) {
+        needLogin(resp);
+      }
+      return;
+    }
+
+    helper.get().filter(req, resp,
+        RequestStats.timeUntilChain("ServletAuthHelper", filterChain), lookup,
         new ServletAuthHelper.NeedNewOAuthTokenHandler() {
           @Override
           public void sendNeedTokenResponse() throws IOException {
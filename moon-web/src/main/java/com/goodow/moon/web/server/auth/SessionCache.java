@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.walkaround.util.server.appengine.MemcacheTable;
+import com.google.walkaround.wave.server.auth.AccountStore.Record;
+import com.google.walkaround.wave.server.auth.OAuthCredentials;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Two-tier cache of verified sessions used by {@link TokenBasedAccountLookup}.
+ *
+ * The first tier is a bounded in-process map from (userId, token hash) to the account record the
+ * token was successfully verified against, so a hit skips both the datastore read and the XSRF
+ * check. The second tier is memcache, keyed by user id only, and holds the account record shared
+ * by all instances; a hit there still verifies the token but saves the datastore read.
+ *
+ * Entries are short-lived. {@link #invalidate} drops the memcache entry and all local entries of a
+ * user; entries in other instances' local tier expire on their own within the configured TTL.
+ */
+@Singleton
+public class SessionCache {
+
+  /** Account record snapshot as stored in memcache. */
+  static class CachedAccount implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final String userId;
+    @Nullable final String participantId;
+    @Nullable final String refreshToken;
+    @Nullable final String accessToken;
+    final long expiresAtMillis;
+
+    CachedAccount(Record record, long expiresAtMillis) {
+      this.userId = record.getUserId().getId();
+      this.participantId =
+          record.getParticipantId() == null ? null : record.getParticipantId().getAddress();
+      OAuthCredentials credentials = record.getOAuthCredentials();
+      this.refreshToken = credentials == null ? null : credentials.getRefreshToken();
+      this.accessToken = credentials == null ? null : credentials.getAccessToken();
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    Record toRecord() {
+      return new Record(new StableUserId(userId), participantId == null ? null : ParticipantId
+          .ofUnsafe(participantId), accessToken == null ? null : new OAuthCredentials(
+          refreshToken == null ? "" : refreshToken, accessToken));
+    }
+  }
+
+  private static final Logger log = Logger.getLogger(SessionCache.class.getName());
+  private static final String MEMCACHE_TAG = "VerifiedSession";
+  private static final int MAX_LOCAL_ENTRIES = 10000;
+
+  private static String localKey(String userId, String token) {
+    return userId + " "
+        + Hashing.sha256().hashBytes(token.getBytes(Charsets.UTF_8)).toString();
+  }
+
+  private final Cache<String, CachedAccount> verified;
+  private final MemcacheTable<String, CachedAccount> records;
+  private final int expirationSeconds;
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong memcacheHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  @Inject
+  SessionCache(MemcacheTable.Factory memcacheFactory,
+      @Config(ConfigName.SESSION_CACHE_EXPIRATION_SECONDS) int expirationSeconds) {
+    this.records = memcacheFactory.create(MEMCACHE_TAG);
+    this.expirationSeconds = expirationSeconds;
+    this.verified =
+        CacheBuilder.newBuilder().maximumSize(MAX_LOCAL_ENTRIES).expireAfterWrite(
+            expirationSeconds, TimeUnit.SECONDS).build();
+  }
+
+  /**
+   * @return the record that {@code token} was already verified against for {@code userId}, or
+   *         null if there is no fresh local entry.
+   */
+  @Nullable
+  public Record getVerified(String userId, String token) {
+    CachedAccount cached = verified.getIfPresent(localKey(userId, token));
+    if (cached != null && cached.expiresAtMillis > System.currentTimeMillis()) {
+      localHits.incrementAndGet();
+      return cached.toRecord();
+    }
+    return null;
+  }
+
+  /**
+   * @return the shared account record for {@code userId}, or null if memcache has no fresh copy.
+   *         The caller still has to verify the token against it.
+   */
+  @Nullable
+  public Record getRecord(StableUserId userId) {
+    CachedAccount cached = records.get(userId.getId());
+    if (cached != null && cached.expiresAtMillis > System.currentTimeMillis()) {
+      memcacheHits.incrementAndGet();
+      return cached.toRecord();
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Batch form of {@link #getRecord}: one memcache round-trip for all of {@code userIds}.
+   *
+   * @return the fresh records found, keyed by user id
+   */
+  public Map<StableUserId, Record> getRecords(Collection<StableUserId> userIds) {
+    Set<String> keys = Sets.newHashSetWithExpectedSize(userIds.size());
+    for (StableUserId userId : userIds) {
+      keys.add(userId.getId());
+    }
+    Map<StableUserId, Record> found = Maps.newHashMap();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<String, CachedAccount> e : records.getAll(keys).entrySet()) {
+      CachedAccount cached = e.getValue();
+      if (cached != null && cached.expiresAtMillis > now) {
+        found.put(new StableUserId(e.getKey()), cached.toRecord());
+      }
+    }
+    memcacheHits.addAndGet(found.size());
+    misses.addAndGet(keys.size() - found.size());
+    return found;
+  }
+
+  /** Records that {@code token} has been verified against {@code record}. */
+  public void putVerified(String userId, String token, Record record) {
+    verified.put(localKey(userId, token), new CachedAccount(record, System.currentTimeMillis()
+        + expirationSeconds * 1000L));
+  }
+
+  /** Shares a freshly read account record with other instances. */
+  public void putRecord(Record record) {
+    records.put(record.getUserId().getId(), new CachedAccount(record, System.currentTimeMillis()
+        + expirationSeconds * 1000L), Expiration.byDeltaSeconds(expirationSeconds),
+        SetPolicy.SET_ALWAYS);
+  }
+
+  /** Forgets everything cached about {@code userId}. */
+  public void invalidate(StableUserId userId) {
+    log.info("Invalidating cached sessions of " + userId);
+    records.delete(userId.getId());
+    String prefix = userId.getId() + " ";
+    for (Iterator<String> it = verified.asMap().keySet().iterator(); it.hasNext();) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+      }
+    }
+  }
+
+  public long getLocalHitCount() {
+    return localHits.get();
+  }
+
+  public long getMemcacheHitCount() {
+    return memcacheHits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  @Override
+  public String toString() {
+    return "SessionCache(localHits=" + localHits + ", memcacheHits=" + memcacheHits + ", misses="
+        + misses + ", localSize=" + verified.size() + ")";
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.walkaround.wave.server.Flag;
+import com.google.walkaround.wave.server.FlagName;
+import com.google.walkaround.wave.server.auth.StableUserId;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Mints and verifies stateless session tokens.
+ *
+ * A token is {@code "s1."} followed by the URL-safe base64 of a version byte, the expiry in
+ * seconds since the epoch, the user id and the participant address, and a truncated HMAC-SHA256
+ * of all of these keyed by the {@code secret} flag. Verifying one needs no datastore or memcache
+ * read, unlike the XSRF tokens keyed on the OAuth access token. It cannot be revoked before it
+ * expires, so logging out only drops the cookie.
+ */
+@Singleton
+public class SessionTokenCodec {
+
+  /** What a valid token asserts. */
+  public static class Session {
+    private final StableUserId userId;
+    private final ParticipantId participantId;
+    private final long expiresAtMillis;
+
+    Session(StableUserId userId, ParticipantId participantId, long expiresAtMillis) {
+      this.userId = userId;
+      this.participantId = participantId;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public StableUserId getUserId() {
+      return userId;
+    }
+
+    public ParticipantId getParticipantId() {
+      return participantId;
+    }
+
+    public long getExpiresAtMillis() {
+      return expiresAtMillis;
+    }
+  }
+
+  static final String PREFIX = "s1.";
+  private static final byte VERSION = 1;
+  private static final int MAC_BYTES = 16;
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+
+  /** @return whether {@code token} is in this format rather than an XSRF token. */
+  public static boolean isSessionToken(String token) {
+    return token.startsWith(PREFIX);
+  }
+
+  private static String encode(byte[] bytes) {
+    String base64 = DatatypeConverter.printBase64Binary(bytes);
+    int end = base64.length();
+    while (end > 0 && base64.charAt(end - 1) == '=') {
+      end--;
+    }
+    return base64.substring(0, end).replace('+', '-').replace('/', '_');
+  }
+
+  @Nullable
+  private static byte[] decode(String s) {
+    StringBuilder b = new StringBuilder(s.length() + 3);
+    b.append(s.replace('-', '+').replace('_', '/'));
+    while (b.length() % 4 != 0) {
+      b.append('=');
+    }
+    try {
+      return DatatypeConverter.parseBase64Binary(b.toString());
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private final ThreadLocal<Mac> mac;
+
+  @Inject
+  SessionTokenCodec(@Flag(FlagName.SECRET) String secret) {
+    // Derive a separate key so that these MACs never double as anything else signed with the
+    // secret.
+    final SecretKeySpec key =
+        new SecretKeySpec(Hashing.sha256().hashBytes(
+            ("moon session token " + secret).getBytes(Charsets.UTF_8)).asBytes(), MAC_ALGORITHM);
+    this.mac = new ThreadLocal<Mac>() {
+      @Override
+      protected Mac initialValue() {
+        try {
+          Mac mac = Mac.getInstance(MAC_ALGORITHM);
+          mac.init(key);
+          return mac;
+        } catch (GeneralSecurityException e) {
+          throw new RuntimeException("No " + MAC_ALGORITHM, e);
+        }
+      }
+    };
+  }
+
+  public String mint(StableUserId userId, ParticipantId participantId, long expiresAtMillis) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeByte(VERSION);
+      out.writeLong(expiresAtMillis / 1000);
+      out.writeUTF(userId.getId());
+      out.writeUTF(participantId.getAddress());
+      out.write(sign(bytes.toByteArray()));
+    } catch (IOException e) {
+      throw new RuntimeException("Writing to a byte array failed", e);
+    }
+    return PREFIX + encode(bytes.toByteArray());
+  }
+
+  /** @return the session {@code token} asserts, or null if it is malformed, forged or expired. */
+  @Nullable
+  public Session verify(String token) {
+    if (!isSessionToken(token)) {
+      return null;
+    }
+    byte[] bytes = decode(token.substring(PREFIX.length()));
+    if (bytes == null || bytes.length <= MAC_BYTES + 1 || bytes[0] != VERSION) {
+      return null;
+    }
+    int signed = bytes.length - MAC_BYTES;
+    byte[] expected = sign(Arrays.copyOf(bytes, signed));
+    if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(bytes, signed, bytes.length))) {
+      return null;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 1, signed - 1));
+      long expiresAtMillis = in.readLong() * 1000;
+      if (expiresAtMillis <= System.currentTimeMillis()) {
+        return null;
+      }
+      return new Session(new StableUserId(in.readUTF()), ParticipantId.ofUnsafe(in.readUTF()),
+          expiresAtMillis);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private byte[] sign(byte[] data) {
+    return Arrays.copyOf(mac.get().doFinal(data), MAC_BYTES);
+  }
+}
@@ -13,13 +13,13 @@
  */
 package com.goodow.moon.web.server.auth;
 
-import com.google.common.net.UriEscapers;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
 import com.google.walkaround.util.server.auth.InvalidSecurityTokenException;
 import com.google.walkaround.wave.server.auth.AccountStore;
 import com.google.walkaround.wave.server.auth.AccountStore.Record;
+import com.google.walkaround.wave.server.auth.NeedNewOAuthTokenException;
 import com.google.walkaround.wave.server.auth.ServletAuthHelper.AccountLookup;
 import com.google.walkaround.wave.server.auth.StableUserId;
 import com.google.walkaround.wave.server.auth.XsrfHelper;
@@ -29,7 +29,8 @@ import java.io.IOException;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
-import javax.servlet.http.Cookie;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -37,10 +38,6 @@ public class TokenBasedAccountLookup implements AccountLookup {
   private static final Logger log = Logger.getLogger(InteractiveAuthFilter.class.getName());
   public static final String USER_ID_KEY = "u";
   public static final String TOKEN_COOKIE_KEY = "t";
-  private static final String TOKEN_HEADER_KEY = "Authorization";
-  private static final String TOKEN_HEADER_VALUE_PREFIX_BEARER = "Bearer ";
-  private static final String TOKEN_HEADER_VALUE_PREFIX_OAUTH = "OAuth ";
-  private static final String TOKEN_REQUEST_PARAM_KEY = "access_token";
 
   public static void redirectToLoginPage(HttpServletRequest req, HttpServletResponse resp)
       throws IOException {
@@ -50,79 +47,100 @@ public class TokenBasedAccountLookup implements AccountLookup {
     resp.sendRedirect(targetUrl);
   }
 
-  private static String getCookie(HttpServletRequest req, String cookieName) {
-    Cookie[] cookies = req.getCookies();
-    if (cookies != null) {
-      for (Cookie cookie : cookies) {
-        if (cookieName.equals(cookie.getName())) {
-          return cookie.getValue();
-        }
-      }
-    }
-    return null;
+  static String getCookie(HttpServletRequest req, String cookieName) {
+    return Credentials.getCookie(req, cookieName);
   }
 
   private static String queryEncode(String s) {
-    return UriEscapers.uriQueryStringEscaper(false).escape(s);
+    return FormEncoder.escape(s);
   }
 
   private final Provider<AccountStore> accountStore;
   private final Provider<XsrfHelper> xsrfHelper;
   private Record record;
+  /** Set when a session token was verified; the record is then only loaded on demand. */
+  private StableUserId sessionUserId;
   private final Provider<UserContext> userCtx;
+  private final SessionCache sessionCache;
+  private final SessionTokenCodec sessionTokens;
 
   @Inject
   TokenBasedAccountLookup(Provider<AccountStore> accountStore, Provider<XsrfHelper> xsrfHelper,
-      Provider<UserContext> userCtx) {
+      Provider<UserContext> userCtx, SessionCache sessionCache, SessionTokenCodec sessionTokens) {
     this.accountStore = accountStore;
     this.xsrfHelper = xsrfHelper;
     this.userCtx = userCtx;
+    this.sessionCache = sessionCache;
+    this.sessionTokens = sessionTokens;
+  }
+
+  /**
+   * @return the user of the verified session token, or null if the request was not authenticated
+   *         with one. The account record of such a user has not been read.
+   */
+  @Nullable
+  public StableUserId sessionUserId() {
+    return record == null ? sessionUserId : null;
+  }
+
+  /**
+   * Runs {@code chain} for a request authenticated with a session token, without reading the
+   * account record: the user context already holds the user and participant, and it reads the
+   * record only if a handler asks for the OAuth credentials.
+   *
+   * @return false if the OAuth credentials were needed but there are none
+   */
+  boolean filterSession(UserContext context, HttpServletRequest req, HttpServletResponse resp,
+      FilterChain chain) throws IOException, ServletException {
+    context.loadCredentialsFrom(this);
+    try {
+      chain.doFilter(req, resp);
+      return true;
+    } catch (NeedNewOAuthTokenException e) {
+      log.info("Session of " + sessionUserId + " needs a new OAuth token: " + e);
+      return false;
+    }
   }
 
   @Override
   @Nullable
   public Record getAccount() throws PermanentFailure, IOException {
+    if (record == null && sessionUserId != null) {
+      record = loadRecord(sessionUserId);
+    }
     return record;
   }
 
   public boolean isUserLoggedIn(HttpServletRequest req) throws IOException {
-    if (record != null) {
+    if (record != null || sessionUserId != null) {
       return true;
     }
-    String userId = getCookie(req, USER_ID_KEY);
-    String secretToken = getCookie(req, TOKEN_COOKIE_KEY);
-    if (userId == null) {
-      userId = req.getHeader(USER_ID_KEY);
-    }
-    if (secretToken == null) {
-      String rawToken = req.getHeader(TOKEN_HEADER_KEY);
-      if (rawToken != null && rawToken.startsWith(TOKEN_HEADER_VALUE_PREFIX_BEARER)) {
-        secretToken = rawToken.substring(TOKEN_HEADER_VALUE_PREFIX_BEARER.length());
-      }
-      if (rawToken != null && rawToken.startsWith(TOKEN_HEADER_VALUE_PREFIX_OAUTH)) {
-        secretToken = rawToken.substring(TOKEN_HEADER_VALUE_PREFIX_OAUTH.length());
-      }
-    }
-    if (userId == null) {
-      userId = req.getParameter(USER_ID_KEY);
-    }
-    if (secretToken == null) {
-      secretToken = req.getParameter(TOKEN_REQUEST_PARAM_KEY);
+    Credentials credentials = Credentials.extract(req);
+    String userId = credentials.userId;
+    String secretToken = credentials.token;
+    if (secretToken != null && SessionTokenCodec.isSessionToken(secretToken)) {
+      return verifySessionToken(userId, secretToken);
     }
     if (userId == null || secretToken == null) {
       return false;
     }
-    Record record;
+    StableUserId stableUserId = new StableUserId(userId);
+    Record record = sessionCache.getVerified(userId, secretToken);
+    if (record != null) {
+      userCtx.get().setUserId(stableUserId);
+      this.record = record;
+      return true;
+    }
     try {
-      record = accountStore.get().get(new StableUserId(userId));
-      if (record == null || record.getOAuthCredentials() == null
-          || record.getOAuthCredentials().getAccessToken() == null) {
-        return false;
-      }
+      record = loadRecord(stableUserId);
     } catch (PermanentFailure e) {
       throw new IOException("PermanentFailure getting account information", e);
     }
-    userCtx.get().setUserId(new StableUserId(userId));
+    if (record == null || record.getOAuthCredentials() == null
+        || record.getOAuthCredentials().getAccessToken() == null) {
+      return false;
+    }
+    userCtx.get().setUserId(stableUserId);
     try {
       xsrfHelper.get().verify(record.getOAuthCredentials().getAccessToken(), secretToken);
     } catch (XsrfTokenExpiredException e) {
@@ -130,8 +148,32 @@ public class TokenBasedAccountLookup implements AccountLookup {
     } catch (InvalidSecurityTokenException e) {
       return false;
     }
+    sessionCache.putVerified(userId, secretToken, record);
     this.record = record;
     return true;
   }
 
-}
\ No newline at end of file
+  private boolean verifySessionToken(@Nullable String userId, String token) {
+    SessionTokenCodec.Session session = sessionTokens.verify(token);
+    if (session == null || userId != null && !userId.equals(session.getUserId().getId())) {
+      return false;
+    }
+    UserContext context = userCtx.get();
+    context.setUserId(session.getUserId());
+    context.setParticipantId(session.getParticipantId());
+    sessionUserId = session.getUserId();
+    return true;
+  }
+
+  @Nullable
+  private Record loadRecord(StableUserId userId) throws PermanentFailure {
+    Record record = sessionCache.getRecord(userId);
+    if (record == null) {
+      record = accountStore.get().get(userId);
+      if (record != null) {
+        sessionCache.putRecord(record);
+      }
+    }
+    return record;
+  }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.walkaround.wave.server.Flag;
+import com.google.walkaround.wave.server.FlagName;
+import com.google.walkaround.wave.server.auth.StableUserId;
+import com.google.walkaround.wave.server.auth.XsrfHelper;
+
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import javax.annotation.Nullable;
+
+/**
+ * Issues the secret token handed to clients after login: a {@link SessionTokenCodec} token when
+ * {@code use_session_tokens} is set, else an XSRF token for the OAuth access token.
+ */
+@Singleton
+public class TokenIssuer {
+  private final SessionTokenCodec sessionTokens;
+  private final Provider<XsrfHelper> xsrfHelper;
+  private final boolean useSessionTokens;
+  private final int expirySeconds;
+
+  @Inject
+  TokenIssuer(SessionTokenCodec sessionTokens, Provider<XsrfHelper> xsrfHelper,
+      @Config(ConfigName.USE_SESSION_TOKENS) boolean useSessionTokens,
+      @Flag(FlagName.XSRF_TOKEN_EXPIRY_SECONDS) int expirySeconds) {
+    this.sessionTokens = sessionTokens;
+    this.xsrfHelper = xsrfHelper;
+    this.useSessionTokens = useSessionTokens;
+    this.expirySeconds = expirySeconds;
+  }
+
+  /** @return the token, or null if XSRF tokens are in use and there is no access token. */
+  @Nullable
+  public String issue(StableUserId userId, ParticipantId participantId,
+      @Nullable String accessToken) {
+    if (useSessionTokens) {
+      return sessionTokens.mint(userId, participantId, System.currentTimeMillis() + expirySeconds
+          * 1000L);
+    }
+    return accessToken == null ? null : xsrfHelper.get().createToken(accessToken);
+  }
+}
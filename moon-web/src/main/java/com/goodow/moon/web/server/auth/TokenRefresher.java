@@ -0,0 +1,135 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.auth;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.walkaround.util.server.appengine.MemcacheTable;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Coordinates OAuth access token refreshes.
+ *
+ * Concurrent refreshes of the same (provider, refresh token) pair within an instance share a
+ * single call to the provider's token endpoint, and the resulting access token is kept in memcache
+ * so that other requests and instances reuse it until {@link #EXPIRY_MARGIN_SECONDS} before the
+ * provider's expires_in, and for at most {@code refreshed_token_cache_seconds}. A cached token that
+ * a caller reports as rejected is dropped rather than handed out again.
+ */
+@Singleton
+public class TokenRefresher {
+
+  private static final Logger log = Logger.getLogger(TokenRefresher.class.getName());
+  private static final String MEMCACHE_TAG = "RefreshedToken";
+  /** How long before the provider's expiry a shared access token stops being handed out. */
+  static final long EXPIRY_MARGIN_SECONDS = 300;
+
+  private static String key(String providerName, String refreshToken) {
+    return providerName + " "
+        + Hashing.sha256().hashBytes(refreshToken.getBytes(Charsets.UTF_8)).toString();
+  }
+
+  private final Provider<OAuthProvider.Helper> helper;
+  private final MemcacheTable<String, String> accessTokens;
+  private final int cacheSeconds;
+  private final ConcurrentMap<String, FutureTask<String>> inFlight =
+      new ConcurrentHashMap<String, FutureTask<String>>();
+
+  @Inject
+  TokenRefresher(Provider<OAuthProvider.Helper> helper, MemcacheTable.Factory memcacheFactory,
+      @Config(ConfigName.REFRESHED_TOKEN_CACHE_SECONDS) int cacheSeconds) {
+    this.helper = helper;
+    this.accessTokens = memcacheFactory.create(MEMCACHE_TAG);
+    this.cacheSeconds = cacheSeconds;
+  }
+
+  /**
+   * @param rejectedAccessToken the access token the provider just refused, which is not returned
+   *        again even if it is still shared; null if none was
+   * @return a fresh access token for {@code refreshToken}, either from memcache, from a refresh
+   *         already in flight, or by calling the provider's token endpoint.
+   */
+  public String refresh(final String providerName, final String refreshToken,
+      @Nullable String rejectedAccessToken) throws IOException {
+    final String key = key(providerName, refreshToken);
+    String cached = accessTokens.get(key);
+    if (cached != null) {
+      if (!cached.equals(rejectedAccessToken)) {
+        log.info("Reusing refreshed access token for " + providerName);
+        return cached;
+      }
+      log.info("Dropping rejected shared access token for " + providerName);
+      accessTokens.delete(key);
+    }
+
+    FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+      @Override
+      public String call() throws IOException {
+        OAuthProvider.Helper.TokenResponse token =
+            helper.get().refreshToken(providerName, refreshToken);
+        long ttlSeconds =
+            token.expiresInSeconds < 0 ? cacheSeconds : Math.min(cacheSeconds,
+                token.expiresInSeconds - EXPIRY_MARGIN_SECONDS);
+        if (ttlSeconds > 0) {
+          accessTokens.put(key, token.accessToken, Expiration.byDeltaSeconds((int) ttlSeconds),
+              SetPolicy.SET_ALWAYS);
+        }
+        return token.accessToken;
+      }
+    });
+    FutureTask<String> existing = inFlight.putIfAbsent(key, task);
+    if (existing == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+    } else {
+      log.info("Joining refresh already in flight for " + providerName);
+      task = existing;
+    }
+
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for token refresh", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Token refresh failed", e.getCause());
+    }
+  }
+}
@@ -15,25 +15,90 @@ package com.goodow.moon.web.server.auth;
 
 import com.google.inject.Inject;
 import com.google.inject.servlet.RequestScoped;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.wave.server.auth.AccountStore.Record;
+import com.google.walkaround.wave.server.auth.NeedNewOAuthTokenException;
+import com.google.walkaround.wave.server.auth.OAuthCredentials;
 
-import java.util.Map;
+import org.waveprotocol.wave.model.wave.ParticipantId;
+
+import java.io.IOException;
+
+import javax.annotation.Nullable;
 
 @RequestScoped
 public class UserContext extends com.google.walkaround.wave.server.auth.UserContext {
-  private final Map<String, OAuthProvider> oAuthProviders;
+  private final OAuthProviderRegistry oAuthProviders;
+  private final AdminRoles adminRoles;
   private OAuthProvider oAuthProvider;
+  /** The participant {@link #admin} was decided for. */
+  private ParticipantId adminDecidedFor;
+  private boolean admin;
+  /** Where the OAuth credentials are read from when first needed. */
+  @Nullable private TokenBasedAccountLookup credentialsSource;
 
   @Inject
-  UserContext(Map<String, OAuthProvider> oAuthProviders) {
+  UserContext(OAuthProviderRegistry oAuthProviders, AdminRoles adminRoles) {
     this.oAuthProviders = oAuthProviders;
+    this.adminRoles = adminRoles;
   }
 
+  /**
+   * Decided once per request and participant: configured admins per {@link AdminRoles}, otherwise
+   * App Engine's check of the current browser's login.
+   */
   @Override
   public boolean isUserAdmin() {
-    if ("goodow.com".equals(super.getParticipantId().getDomain())) {
-      return true;
+    if (!hasParticipantId()) {
+      return false;
+    }
+    ParticipantId participant = getParticipantId();
+    if (!participant.equals(adminDecidedFor)) {
+      admin = decideAdmin(participant);
+      adminDecidedFor = participant;
+    }
+    return admin;
+  }
+
+  private boolean decideAdmin(ParticipantId participant) {
+    // The App Engine check is about the Users service login of this request, not about the
+    // participant, so it must not be shared with other requests.
+    return adminRoles.isConfiguredAdmin(participant) || super.isUserAdmin();
+  }
+
+  /**
+   * Defers reading the account record of a session token's user until the OAuth credentials are
+   * asked for, since most requests never use them.
+   */
+  void loadCredentialsFrom(TokenBasedAccountLookup lookup) {
+    credentialsSource = lookup;
+  }
+
+  @Override
+  public boolean hasOAuthCredentials() {
+    return super.hasOAuthCredentials() || credentialsSource != null;
+  }
+
+  /** @throws NeedNewOAuthTokenException if a deferred account record holds no credentials */
+  @Override
+  public OAuthCredentials getOAuthCredentials() {
+    if (credentialsSource != null && !super.hasOAuthCredentials()) {
+      TokenBasedAccountLookup source = credentialsSource;
+      credentialsSource = null;
+      Record record;
+      try {
+        record = source.getAccount();
+      } catch (PermanentFailure e) {
+        throw new RuntimeException("Failed to read account record of " + getUserId(), e);
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to read account record of " + getUserId(), e);
+      }
+      if (record == null || record.getOAuthCredentials() == null) {
+        throw new NeedNewOAuthTokenException("No OAuth credentials for " + getUserId());
+      }
+      setOAuthCredentials(record.getOAuthCredentials());
     }
-    return super.isUserAdmin();
+    return super.getOAuthCredentials();
   }
 
   public void setOAuthProvider(OAuthProvider oAuthProvider) {
@@ -41,16 +106,9 @@ public class UserContext extends com.google.walkaround.wave.server.auth.UserCont
   }
 
   OAuthProvider getOAuthProvider() {
-    if (oAuthProvider != null) {
-      return oAuthProvider;
-    }
-    String providerName = null;
-    for (String provider : oAuthProviders.keySet()) {
-      if (provider.startsWith("" + getUserId().getId().charAt(0))) {
-        providerName = provider;
-        break;
-      }
+    if (oAuthProvider == null) {
+      oAuthProvider = oAuthProviders.forUserId(getUserId().getId());
     }
-    return providerName == null ? null : oAuthProviders.get(providerName);
+    return oAuthProvider;
   }
 }
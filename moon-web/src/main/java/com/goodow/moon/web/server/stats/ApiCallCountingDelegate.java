@@ -0,0 +1,84 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.stats;
+
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the App Engine API calls made through {@link ApiProxy} before passing them on to the
+ * delegate installed by the runtime.
+ */
+class ApiCallCountingDelegate implements Delegate<Environment> {
+
+  /**
+   * Wraps the current delegate unless it is already wrapped. Cheap once installed: only the first
+   * calls, or calls after the runtime replaced the delegate, take the lock.
+   */
+  static void install() {
+    if (!(ApiProxy.getDelegate() instanceof ApiCallCountingDelegate)) {
+      installLocked();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static synchronized void installLocked() {
+    Delegate<Environment> current = ApiProxy.getDelegate();
+    if (current != null && !(current instanceof ApiCallCountingDelegate)) {
+      ApiProxy.setDelegate(new ApiCallCountingDelegate(current));
+    }
+  }
+
+  private final Delegate<Environment> delegate;
+
+  private ApiCallCountingDelegate(Delegate<Environment> delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+      byte[] request) throws ApiProxyException {
+    RequestStats.countApiCall(packageName);
+    return delegate.makeSyncCall(environment, packageName, methodName, request);
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+      String methodName, byte[] request, ApiConfig apiConfig) {
+    RequestStats.countApiCall(packageName);
+    return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+  }
+
+  @Override
+  public void log(Environment environment, LogRecord record) {
+    delegate.log(environment, record);
+  }
+
+  @Override
+  public void flushLogs(Environment environment) {
+    delegate.flushLogs(environment);
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(Environment environment) {
+    return delegate.getRequestThreads(environment);
+  }
+}
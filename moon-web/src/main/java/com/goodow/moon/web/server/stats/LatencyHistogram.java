@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.stats;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed, roughly exponential buckets. Percentiles are reported as
+ * the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+  /** Upper bounds of the buckets, in milliseconds; the last bucket is unbounded. */
+  private static final long[] BOUNDS_MILLIS = {
+      1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong totalMicros = new AtomicLong();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  public void record(long nanos) {
+    long micros = nanos / 1000;
+    long millis = micros / 1000;
+    int bucket = 0;
+    while (bucket < BOUNDS_MILLIS.length && millis >= BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalMicros.addAndGet(micros);
+    long max;
+    do {
+      max = maxMicros.get();
+    } while (micros > max && !maxMicros.compareAndSet(max, micros));
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /** @return the upper bound, in milliseconds, of the bucket holding the given percentile. */
+  public long percentileMillis(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[counts.length()];
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    long rank = (long) Math.ceil(total * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= rank && seen > 0) {
+        return i < BOUNDS_MILLIS.length ? BOUNDS_MILLIS[i] : maxMicros.get() / 1000;
+      }
+    }
+    return 0;
+  }
+
+  public JSONObject toJson() throws JSONException {
+    long n = count.get();
+    JSONObject json = new JSONObject();
+    json.put("count", n);
+    json.put("meanMillis", n == 0 ? 0 : totalMicros.get() / n / 1000.0);
+    json.put("maxMillis", maxMicros.get() / 1000.0);
+    json.put("p50Millis", percentileMillis(50));
+    json.put("p90Millis", percentileMillis(90));
+    json.put("p99Millis", percentileMillis(99));
+    JSONArray buckets = new JSONArray();
+    for (int i = 0; i < counts.length(); i++) {
+      JSONObject bucket = new JSONObject();
+      bucket.put("ltMillis", i < BOUNDS_MILLIS.length ? BOUNDS_MILLIS[i] : -1);
+      bucket.put("count", counts.get(i));
+      buckets.put(bucket);
+    }
+    json.put("buckets", buckets);
+    return json;
+  }
+}
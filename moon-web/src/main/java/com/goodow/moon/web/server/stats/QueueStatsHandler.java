@@ -0,0 +1,110 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.stats;
+
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.QueueStatistics;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Serves, for every queue in queue.xml, its depth and throughput as reported by App Engine and the
+ * task delay and run time histograms recorded by {@link RequestStatsFilter} on this instance.
+ */
+public class QueueStatsHandler extends AbstractHandler {
+
+  private static final Logger log = Logger.getLogger(QueueStatsHandler.class.getName());
+  private static final double STATISTICS_DEADLINE_SECONDS = 5;
+
+  private static volatile ImmutableList<String> queueNames;
+
+  private static ImmutableList<String> queueNames(String webinfRoot) {
+    if (queueNames == null) {
+      ImmutableList.Builder<String> names = ImmutableList.builder();
+      try {
+        NodeList queues =
+            DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+                new File(webinfRoot + "/queue.xml")).getElementsByTagName("queue");
+        for (int i = 0; i < queues.getLength(); i++) {
+          NodeList name = ((Element) queues.item(i)).getElementsByTagName("name");
+          names.add(name.item(0).getTextContent().trim());
+        }
+      } catch (Exception e) {
+        throw new RuntimeException("Failed to read queue names from queue.xml", e);
+      }
+      queueNames = names.build();
+    }
+    return queueNames;
+  }
+
+  @Inject @Named("webinf root") String webinfRoot;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    List<String> names = queueNames(webinfRoot);
+    List<Future<QueueStatistics>> futures = Lists.newArrayList();
+    for (String name : names) {
+      futures.add(QueueFactory.getQueue(name).fetchStatisticsAsync(STATISTICS_DEADLINE_SECONDS));
+    }
+    JSONObject json = new JSONObject();
+    try {
+      for (int i = 0; i < names.size(); i++) {
+        JSONObject queue = RequestStats.queueToJson(names.get(i));
+        try {
+          QueueStatistics stats = futures.get(i).get();
+          queue.put("tasks", stats.getNumTasks());
+          Long oldestEtaUsec = stats.getOldestEta();
+          queue.put("oldestTaskAgeMillis", oldestEtaUsec == null ? 0
+              : Math.max(0, System.currentTimeMillis() - oldestEtaUsec / 1000));
+          queue.put("executedLastMinute", stats.getExecutedLastMinute());
+          queue.put("requestsInFlight", stats.getRequestsInFlight());
+          queue.put("enforcedRate", stats.getEnforcedRate());
+        } catch (ExecutionException e) {
+          log.log(Level.WARNING, "Failed to fetch statistics of queue " + names.get(i), e);
+          queue.put("error", String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted fetching queue statistics", e);
+        }
+        json.put(names.get(i), queue);
+      }
+    } catch (JSONException e) {
+      throw new RuntimeException("Bad JSON: " + json, e);
+    }
+    resp.setStatus(200);
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().print(json.toString());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.stats;
+
+import com.google.common.collect.ImmutableSet;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Per-instance request statistics: latency histograms per handler path and per auth filter stage,
+ * and counts of App Engine API calls.
+ *
+ * This is static rather than injected because {@link RequestStatsFilter} is installed through
+ * {@code GuiceSetup.addExtraFilter} before the injector exists.
+ */
+public class RequestStats {
+
+  /** API calls made by the current request. */
+  static class Counters {
+    int datastore;
+    int memcache;
+    int urlFetch;
+    int other;
+  }
+
+  /** Groups requests to paths that are not tracked individually. */
+  static final String OTHER_PATHS = "(other)";
+
+  static final String DATASTORE_PACKAGE = "datastore_v3";
+  static final String MEMCACHE_PACKAGE = "memcache";
+  static final String URLFETCH_PACKAGE = "urlfetch";
+
+  private static volatile Set<String> trackedPaths = ImmutableSet.of();
+  private static final ConcurrentMap<String, LatencyHistogram> paths =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private static final ConcurrentMap<String, LatencyHistogram> stages =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private static final ConcurrentMap<String, LatencyHistogram> queueDelays =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private static final ConcurrentMap<String, LatencyHistogram> taskLatencies =
+      new ConcurrentHashMap<String, LatencyHistogram>();
+  private static final ConcurrentMap<String, AtomicLong> apiCalls =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private static final ThreadLocal<Counters> current = new ThreadLocal<Counters>();
+
+  /** Requests to these paths get their own histogram. */
+  public static void trackPaths(Iterable<String> paths) {
+    trackedPaths = ImmutableSet.copyOf(paths);
+  }
+
+  /** Records the time spent in an auth filter stage of the current request. */
+  public static void recordStage(String stage, long nanos) {
+    histogram(stages, stage).record(nanos);
+  }
+
+  /**
+   * Wraps {@code chain} so that the time from now until the chain is entered is recorded as
+   * {@code stage}. Used to time code that owns the call to the rest of the chain.
+   */
+  public static FilterChain timeUntilChain(final String stage, final FilterChain chain) {
+    final long start = System.nanoTime();
+    return new FilterChain() {
+      @Override
+      public void doFilter(ServletRequest req, ServletResponse resp) throws IOException,
+          ServletException {
+        recordStage(stage, System.nanoTime() - start);
+        chain.doFilter(req, resp);
+      }
+    };
+  }
+
+  /** @return the task queue histograms of {@code queue}: delay past ETA and run time. */
+  public static JSONObject queueToJson(String queue) throws JSONException {
+    JSONObject json = new JSONObject();
+    LatencyHistogram delay = queueDelays.get(queue);
+    LatencyHistogram latency = taskLatencies.get(queue);
+    json.put("delayPastEta", delay == null ? JSONObject.NULL : delay.toJson());
+    json.put("runTime", latency == null ? JSONObject.NULL : latency.toJson());
+    return json;
+  }
+
+  public static JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("paths", toJson(paths));
+    json.put("stages", toJson(stages));
+    JSONObject calls = new JSONObject();
+    for (Map.Entry<String, AtomicLong> e : apiCalls.entrySet()) {
+      calls.put(e.getKey(), e.getValue().get());
+    }
+    json.put("apiCalls", calls);
+    return json;
+  }
+
+  static Counters begin() {
+    Counters counters = new Counters();
+    current.set(counters);
+    return counters;
+  }
+
+  static void end(String path, long nanos) {
+    current.remove();
+    histogram(paths, trackedPaths.contains(path) ? path : OTHER_PATHS).record(nanos);
+  }
+
+  /**
+   * Records a task queue request: how long after its ETA it started, and how long it ran.
+   */
+  static void recordTask(String queue, long delayNanos, long nanos) {
+    histogram(queueDelays, queue).record(Math.max(0, delayNanos));
+    histogram(taskLatencies, queue).record(nanos);
+  }
+
+  static void countApiCall(String packageName) {
+    AtomicLong total = apiCalls.get(packageName);
+    if (total == null) {
+      AtomicLong existing = apiCalls.putIfAbsent(packageName, total = new AtomicLong());
+      total = existing == null ? total : existing;
+    }
+    total.incrementAndGet();
+
+    Counters counters = current.get();
+    if (counters == null) {
+      return;
+    }
+    if (DATASTORE_PACKAGE.equals(packageName)) {
+      counters.datastore++;
+    } else if (MEMCACHE_PACKAGE.equals(packageName)) {
+      counters.memcache++;
+    } else if (URLFETCH_PACKAGE.equals(packageName)) {
+      counters.urlFetch++;
+    } else {
+      counters.other++;
+    }
+  }
+
+  private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> map,
+      String key) {
+    LatencyHistogram histogram = map.get(key);
+    if (histogram == null) {
+      LatencyHistogram existing = map.putIfAbsent(key, histogram = new LatencyHistogram());
+      histogram = existing == null ? histogram : existing;
+    }
+    return histogram;
+  }
+
+  private static JSONObject toJson(Map<String, LatencyHistogram> histograms)
+      throws JSONException {
+    JSONObject json = new JSONObject();
+    for (Map.Entry<String, LatencyHistogram> e : histograms.entrySet()) {
+      json.put(e.getKey(), e.getValue().toJson());
+    }
+    return json;
+  }
+
+  private RequestStats() {
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.stats;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Times every request into {@link RequestStats} and logs one summary line per request with its
+ * latency and API call counts.
+ */
+public class RequestStatsFilter implements Filter {
+
+  private static final Logger log = Logger.getLogger(RequestStatsFilter.class.getName());
+
+  /** Set by App Engine on task queue requests. */
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+  /** Set by App Engine on task queue requests: the task's ETA in seconds since the epoch. */
+  private static final String TASK_ETA_HEADER = "X-AppEngine-TaskETA";
+
+  /** @return nanoseconds from the task's ETA until now, or 0 if unknown. */
+  private static long delayPastEta(HttpServletRequest req) {
+    String eta = req.getHeader(TASK_ETA_HEADER);
+    if (eta == null) {
+      return 0;
+    }
+    try {
+      return (long) ((System.currentTimeMillis() / 1000.0 - Double.parseDouble(eta)) * 1e9);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
+      throws IOException, ServletException {
+    // Lock-free unless the runtime has swapped the delegate installed by init().
+    ApiCallCountingDelegate.install();
+    HttpServletRequest req = (HttpServletRequest) request;
+    String path = req.getRequestURI();
+    String queue = req.getHeader(QUEUE_NAME_HEADER);
+    long delayNanos = queue == null ? 0 : delayPastEta(req);
+    RequestStats.Counters counters = RequestStats.begin();
+    long start = System.nanoTime();
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      long nanos = System.nanoTime() - start;
+      RequestStats.end(path, nanos);
+      if (queue != null) {
+        RequestStats.recordTask(queue, delayNanos, nanos);
+      }
+      log.info("stats " + path + " " + nanos / 1000000 + "ms ds=" + counters.datastore + " mc="
+          + counters.memcache + " uf=" + counters.urlFetch + " other=" + counters.other);
+    }
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    ApiCallCountingDelegate.install();
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.stats;
+
+import com.goodow.moon.web.server.auth.OutboundBreakers;
+import com.goodow.moon.web.server.auth.SessionCache;
+
+import com.google.gxp.base.GxpTemplate;
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves the aggregates of {@link RequestStats}, along with the hit rates of the caches on the
+ * request path and the state of the outbound circuit breakers, as JSON.
+ */
+public class RequestStatsHandler extends AbstractHandler {
+
+  @Inject SessionCache sessionCache;
+  @Inject OutboundBreakers outboundBreakers;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    JSONObject json;
+    try {
+      json = RequestStats.toJson();
+      JSONObject session = new JSONObject();
+      session.put("localHits", sessionCache.getLocalHitCount());
+      session.put("memcacheHits", sessionCache.getMemcacheHitCount());
+      session.put("misses", sessionCache.getMissCount());
+      json.put("sessionCache", session);
+      JSONObject gxp = new JSONObject();
+      gxp.put("hits", GxpTemplate.getMessageCacheHits());
+      gxp.put("misses", GxpTemplate.getMessageCacheMisses());
+      gxp.put("size", GxpTemplate.getMessageCacheSize());
+      json.put("gxpMessageCache", gxp);
+      json.put("outbound", outboundBreakers.toJson());
+    } catch (JSONException e) {
+      throw new RuntimeException("Bad JSON", e);
+    }
+    resp.setStatus(200);
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().print(json.toString());
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.goodow.moon.web.server.auth.UserContext;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.auth.InvalidSecurityTokenException;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.auth.XsrfHelper;
+import com.google.walkaround.wave.server.auth.XsrfHelper.XsrfTokenExpiredException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lists the recent {@link BulkDeleter} jobs and their progress (GET), and starts or resumes a job
+ * (POST with {@code token}).
+ *
+ * To start a job, POST {@code kinds} (comma-separated) and/or {@code ancestor} (an encoded key, or
+ * {@code Kind:name} for a root entity), and repeat the value of {@code kinds}, or of
+ * {@code ancestor} if there are no kinds, as {@code confirm}. To resume one, POST {@code resume}
+ * with the job id.
+ */
+public class BulkDeleteHandler extends AbstractHandler {
+
+  private static final String XSRF_ACTION = "admin bulk delete ";
+  private static final int MAX_JOBS_LISTED = 20;
+
+  @Inject BulkDeleter deleter;
+  @Inject UserContext userContext;
+  @Inject XsrfHelper xsrfHelper;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    writeJobs(resp, deleter.getJobs(MAX_JOBS_LISTED));
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    try {
+      xsrfHelper.verify(xsrfAction(), requireParameter(req, "token"));
+    } catch (XsrfTokenExpiredException e) {
+      throw new BadRequestException("XSRF token expired");
+    } catch (InvalidSecurityTokenException e) {
+      throw new BadRequestException("Bad XSRF token");
+    }
+    BulkDeleter.Job job;
+    try {
+      String resume = optionalParameter(req, "resume", null);
+      if (resume != null) {
+        job = deleter.resume(resume);
+      } else {
+        String kinds = optionalParameter(req, "kinds", "");
+        String ancestor = optionalParameter(req, "ancestor", "");
+        if (!requireParameter(req, "confirm").equals(kinds.isEmpty() ? ancestor : kinds)) {
+          throw new BadRequestException("Confirmation does not match");
+        }
+        job =
+            deleter.start(ImmutableList.copyOf(Splitter.on(',').trimResults().omitEmptyStrings()
+                .split(kinds)), parseKey(ancestor));
+      }
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+    writeJobs(resp, ImmutableList.of(job));
+  }
+
+  @Nullable
+  private static Key parseKey(String key) {
+    if (key.isEmpty()) {
+      return null;
+    }
+    int colon = key.indexOf(':');
+    return colon < 0 ? KeyFactory.stringToKey(key) : KeyFactory.createKey(key.substring(0, colon),
+        key.substring(colon + 1));
+  }
+
+  private void writeJobs(HttpServletResponse resp, List<BulkDeleter.Job> jobs)
+      throws IOException {
+    JSONObject json = new JSONObject();
+    try {
+      JSONArray array = new JSONArray();
+      for (BulkDeleter.Job job : jobs) {
+        JSONObject o = new JSONObject();
+        o.put("id", job.id);
+        o.put("kinds", new JSONArray(job.kinds));
+        o.put("ancestor", job.ancestor == null ? null : KeyFactory.keyToString(job.ancestor));
+        o.put("running", job.running);
+        o.put("kindIndex", job.kindIndex);
+        o.put("batches", job.batches);
+        o.put("deleted", job.deleted);
+        o.put("startedMillis", job.startedMillis);
+        array.put(o);
+      }
+      json.put("jobs", array);
+      json.put("token", xsrfHelper.createToken(xsrfAction()));
+    } catch (JSONException e) {
+      throw new RuntimeException("Bad JSON: " + json, e);
+    }
+    resp.setStatus(200);
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().print(json.toString());
+  }
+
+  private String xsrfAction() {
+    return XSRF_ACTION + userContext.getParticipantId().getAddress();
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Runs one batch of a {@link BulkDeleter} job on the bulk-delete queue. */
+public class BulkDeleteTaskHandler extends AbstractHandler {
+
+  @Inject BulkDeleter deleter;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String job = requireParameter(req, BulkDeleter.JOB_PARAM);
+    long batch;
+    try {
+      batch = Long.parseLong(requireParameter(req, BulkDeleter.BATCH_PARAM));
+    } catch (NumberFormatException e) {
+      throw new BadRequestException("Bad batch number");
+    }
+    deleter.deleteBatch(job, batch);
+    resp.setStatus(200);
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Deletes entities in batches of {@link #BATCH_SIZE} keys from keys-only queries, either all
+ * entities of some kinds or everything under one ancestor, such as the deltas and snapshots of one
+ * wavelet.
+ *
+ * Each job is a chain of tasks on the bulk-delete queue, one batch per task. A task is delayed so
+ * that the job deletes at most {@code bulk_delete_write_qps} entities per second. The job's
+ * progress is stored in a checkpoint entity, updated in the same transaction that adds the next
+ * task, so an interrupted job resumes from the kind it was working on.
+ */
+@Singleton
+public class BulkDeleter {
+
+  /** A bulk delete job, as stored in its checkpoint entity. */
+  public static final class Job {
+    public final String id;
+    /** Kinds to delete in order; empty to delete every kind under {@link #ancestor}. */
+    public final ImmutableList<String> kinds;
+    @Nullable public final Key ancestor;
+    public final boolean running;
+    /** Index into {@link #kinds} of the kind being deleted. */
+    public final long kindIndex;
+    public final long batches;
+    public final long deleted;
+    public final long startedMillis;
+
+    Job(String id, ImmutableList<String> kinds, @Nullable Key ancestor, boolean running,
+        long kindIndex, long batches, long deleted, long startedMillis) {
+      this.id = id;
+      this.kinds = kinds;
+      this.ancestor = ancestor;
+      this.running = running;
+      this.kindIndex = kindIndex;
+      this.batches = batches;
+      this.deleted = deleted;
+      this.startedMillis = startedMillis;
+    }
+
+    Job next(boolean nextKind, int deletedInBatch) {
+      long nextKindIndex = nextKind ? kindIndex + 1 : kindIndex;
+      boolean more = nextKindIndex < Math.max(1, kinds.size());
+      return new Job(id, kinds, ancestor, more, nextKindIndex, batches + 1,
+          deleted + deletedInBatch, startedMillis);
+    }
+  }
+
+  public static final String QUEUE = "bulk-delete";
+  public static final String TASK_PATH = "/taskqueue/bulkdelete";
+  static final String JOB_PARAM = "job";
+  static final String BATCH_PARAM = "batch";
+
+  static final int BATCH_SIZE = 500;
+
+  private static final Logger log = Logger.getLogger(BulkDeleter.class.getName());
+  private static final String JOB_KIND = "MoonBulkDelete";
+
+  private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+  /** Read per batch, so that overrides through /admin/config apply to running jobs. */
+  private final Provider<Integer> writeQps;
+
+  @Inject
+  BulkDeleter(@Config(ConfigName.BULK_DELETE_WRITE_QPS) Provider<Integer> writeQps) {
+    this.writeQps = writeQps;
+  }
+
+  /**
+   * Starts a job deleting all entities of {@code kinds}, restricted to the descendants of
+   * {@code ancestor} if not null. With no kinds, deletes everything under {@code ancestor},
+   * including the ancestor itself.
+   */
+  public Job start(List<String> kinds, @Nullable Key ancestor) {
+    if (kinds.isEmpty() && ancestor == null) {
+      throw new IllegalArgumentException("Need an entity kind or an ancestor");
+    }
+    long now = System.currentTimeMillis();
+    String id = now + "-" + Joiner.on('+').join(kinds);
+    Job job = new Job(id, ImmutableList.copyOf(kinds), ancestor, true, 0, 0, 0, now);
+    Transaction tx = datastore.beginTransaction();
+    try {
+      datastore.put(tx, toEntity(job));
+      QueueFactory.getQueue(QUEUE).add(tx, batchTask(job, 0));
+      tx.commit();
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+    log.info("Started bulk delete " + id + " of " + kinds + " under " + ancestor);
+    return job;
+  }
+
+  /**
+   * Adds the next task of a job that stopped, e.g. after its task ran out of retries. If the job
+   * is in fact still running, only one of the two tasks for its next batch gets to advance it.
+   */
+  public Job resume(String id) {
+    Transaction tx = datastore.beginTransaction();
+    try {
+      Job job;
+      try {
+        job = fromEntity(datastore.get(tx, KeyFactory.createKey(JOB_KIND, id)));
+      } catch (EntityNotFoundException e) {
+        job = null;
+      }
+      if (job == null || !job.running) {
+        throw new IllegalArgumentException("No running job " + id);
+      }
+      QueueFactory.getQueue(QUEUE).add(tx, batchTask(job, 0));
+      tx.commit();
+      return job;
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  @Nullable
+  public Job getJob(String id) {
+    try {
+      return fromEntity(datastore.get(KeyFactory.createKey(JOB_KIND, id)));
+    } catch (EntityNotFoundException e) {
+      return null;
+    }
+  }
+
+  /** @return the most recently started jobs. */
+  public List<Job> getJobs(int limit) {
+    List<Job> jobs = Lists.newArrayList();
+    for (Entity entity : datastore.prepare(
+        new Query(JOB_KIND).addSort("startedMillis", Query.SortDirection.DESCENDING)).asIterable(
+        FetchOptions.Builder.withLimit(limit))) {
+      jobs.add(fromEntity(entity));
+    }
+    return jobs;
+  }
+
+  /**
+   * Deletes one batch of job {@code id} and adds the task for the next one, unless
+   * {@code batch} is not the job's next batch. Tasks run at least once, so the check is repeated
+   * in the transaction that advances the job: of two runs of the same batch, only one adds the
+   * next task, and the job never forks into two chains.
+   *
+   * @return the job after the batch, or null if there was nothing to do
+   */
+  @Nullable
+  Job deleteBatch(String id, long batch) {
+    Job job = getJob(id);
+    if (job == null || !job.running || job.batches != batch) {
+      log.info("Dropping stale task for batch " + batch + " of bulk delete " + id);
+      return null;
+    }
+    long start = System.currentTimeMillis();
+    Query query =
+        job.kinds.isEmpty() ? new Query() : new Query(job.kinds.get((int) job.kindIndex));
+    if (job.ancestor != null) {
+      query.setAncestor(job.ancestor);
+    }
+    List<Key> keys = Lists.newArrayList();
+    for (Entity entity : datastore.prepare(query.setKeysOnly()).asIterable(
+        FetchOptions.Builder.withLimit(BATCH_SIZE))) {
+      keys.add(entity.getKey());
+    }
+    // Deleting keys a lagging query returns twice is harmless.
+    datastore.delete(keys);
+
+    Job next = job.next(keys.size() < BATCH_SIZE, keys.size());
+    long delayMillis =
+        Math.max(0, keys.size() * 1000L / Math.max(1, writeQps.get())
+            - (System.currentTimeMillis() - start));
+    Transaction tx = datastore.beginTransaction();
+    try {
+      Job current;
+      try {
+        current = fromEntity(datastore.get(tx, KeyFactory.createKey(JOB_KIND, id)));
+      } catch (EntityNotFoundException e) {
+        return null;
+      }
+      if (!current.running || current.batches != batch) {
+        log.info("Bulk delete " + id + " moved past batch " + batch + "; dropping duplicate run");
+        return null;
+      }
+      datastore.put(tx, toEntity(next));
+      if (next.running) {
+        QueueFactory.getQueue(QUEUE).add(tx, batchTask(next, delayMillis));
+      }
+      tx.commit();
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+    if (!next.running) {
+      log.info("Bulk delete " + id + " done: " + next.deleted + " entities");
+    }
+    return next;
+  }
+
+  private static TaskOptions batchTask(Job job, long delayMillis) {
+    return TaskOptions.Builder.withUrl(TASK_PATH).param(JOB_PARAM, job.id).param(BATCH_PARAM,
+        String.valueOf(job.batches)).countdownMillis(delayMillis);
+  }
+
+  private static Entity toEntity(Job job) {
+    Entity entity = new Entity(KeyFactory.createKey(JOB_KIND, job.id));
+    entity.setUnindexedProperty("kinds", Joiner.on(',').join(job.kinds));
+    entity.setUnindexedProperty("ancestor", job.ancestor);
+    entity.setUnindexedProperty("running", job.running);
+    entity.setUnindexedProperty("kindIndex", job.kindIndex);
+    entity.setUnindexedProperty("batches", job.batches);
+    entity.setUnindexedProperty("deleted", job.deleted);
+    entity.setProperty("startedMillis", job.startedMillis);
+    return entity;
+  }
+
+  private static Job fromEntity(Entity e) {
+    return new Job(e.getKey().getName(), ImmutableList.copyOf(Splitter.on(',').omitEmptyStrings()
+        .split((String) e.getProperty("kinds"))), (Key) e.getProperty("ancestor"), (Boolean) e
+        .getProperty("running"), (Long) e.getProperty("kindIndex"), (Long) e
+        .getProperty("batches"), (Long) e.getProperty("deleted"), (Long) e
+        .getProperty("startedMillis"));
+  }
+}
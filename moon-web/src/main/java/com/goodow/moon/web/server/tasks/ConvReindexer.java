@@ -0,0 +1,261 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.collect.Lists;
+import com.google.inject.Singleton;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reindexes the conversations whose ConvIndex entry changed since the last completed run.
+ *
+ * A run covers the {@code lastModified} range from the high-water mark of the previous run to the
+ * time the run started. A chain of scan tasks on the reindex queue walks that range in
+ * {@code lastModified} order, {@link #PAGE_SIZE} keys at a time, and fans each page out to index
+ * tasks. After every page the cursor is checkpointed in the same transaction that adds the next
+ * scan task, so a failed scan resumes where it stopped. The high-water mark only moves once a run
+ * completes.
+ *
+ * The range query is not an ancestor query, so it is only eventually consistent: a conversation
+ * written shortly before a run started may not show up in it yet. Each run therefore starts
+ * {@link #CONSISTENCY_MARGIN_MILLIS} before the previous high-water mark and reindexes the
+ * overlap again, which is harmless.
+ */
+@Singleton
+public class ConvReindexer {
+
+  /** Progress of the current or last run, as stored in the checkpoint entity. */
+  public static final class Checkpoint {
+    /** Start of the current run in millis, which also identifies it; 0 before the first run. */
+    public final long runId;
+    /**
+     * Start of the last completed run. Changes after this, and recent ones before it that the
+     * index did not show yet, were reindexed by no completed run.
+     */
+    public final long highWater;
+    /** The current run covers changes in (from, runId]. */
+    public final long from;
+    public final boolean running;
+    public final long shards;
+    public final long pages;
+    public final long processed;
+    @Nullable final String cursor;
+
+    Checkpoint(long runId, long highWater, long from, boolean running, long shards, long pages,
+        long processed, @Nullable String cursor) {
+      this.runId = runId;
+      this.highWater = highWater;
+      this.from = from;
+      this.running = running;
+      this.shards = shards;
+      this.pages = pages;
+      this.processed = processed;
+      this.cursor = cursor;
+    }
+  }
+
+  public static final String QUEUE = "reindex";
+  public static final String TASK_PATH = "/taskqueue/reindex";
+  static final String STEP_PARAM = "step";
+  static final String STEP_SCAN = "scan";
+  static final String STEP_INDEX = "index";
+  static final String RUN_PARAM = "run";
+  static final String ID_PARAM = "id";
+
+  /** Walkaround's conversation index, see ConvIndex in datastore-indexes.xml. */
+  static final String CONV_INDEX_KIND = "ConvIndex";
+  static final String LAST_MODIFIED_PROPERTY = "lastModified";
+
+  static final int PAGE_SIZE = 500;
+  /** Changed conversations per shard when sizing a run. */
+  static final int ENTITIES_PER_SHARD = 100;
+  /** The shard count of the old mapreduce configuration. */
+  static final int MAX_SHARDS = 20;
+  /** How far behind the start of a run the index may lag. */
+  static final long CONSISTENCY_MARGIN_MILLIS = 5 * 60 * 1000;
+
+  private static final Logger log = Logger.getLogger(ConvReindexer.class.getName());
+  private static final Key CHECKPOINT_KEY = KeyFactory.createKey("MoonReindexCheckpoint", "conv");
+  private static final Checkpoint NONE = new Checkpoint(0, 0, 0, false, 0, 0, 0, null);
+
+  /** @return how many index tasks each page is split into for {@code changed} conversations. */
+  static int shardsFor(int changed) {
+    return Math.max(1, Math.min(MAX_SHARDS, (changed + ENTITIES_PER_SHARD - 1)
+        / ENTITIES_PER_SHARD));
+  }
+
+  private final DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+
+  public Checkpoint getCheckpoint() {
+    try {
+      return fromEntity(datastore.get(CHECKPOINT_KEY));
+    } catch (EntityNotFoundException e) {
+      return NONE;
+    }
+  }
+
+  /**
+   * Starts a run over the changes since the last completed one, or over all conversations if
+   * {@code full}. A run that is still in progress is resumed from its checkpoint instead, unless
+   * {@code full} is set.
+   */
+  public Checkpoint start(boolean full) {
+    Checkpoint last = getCheckpoint();
+    if (last.running && !full) {
+      log.info("Resuming reindex run " + last.runId + " after " + last.pages + " pages");
+      QueueFactory.getQueue(QUEUE).add(scanTask(last.runId));
+      return last;
+    }
+    long runId = System.currentTimeMillis();
+    long from = full ? 0 : Math.max(0, last.highWater - CONSISTENCY_MARGIN_MILLIS);
+    int changed =
+        datastore.prepare(changedSince(from, runId)).countEntities(
+            FetchOptions.Builder.withLimit(MAX_SHARDS * ENTITIES_PER_SHARD));
+    Checkpoint run =
+        new Checkpoint(runId, last.highWater, from, true, shardsFor(changed), 0, 0, null);
+    Transaction tx = datastore.beginTransaction();
+    try {
+      datastore.put(tx, toEntity(run));
+      QueueFactory.getQueue(QUEUE).add(tx, scanTask(runId));
+      tx.commit();
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+    log.info("Started reindex run " + runId + " from " + from + " with " + run.shards + " shards");
+    return run;
+  }
+
+  /** Handles one scan task: fans out the next page of run {@code runId} and checkpoints. */
+  void scan(long runId) {
+    Checkpoint run = getCheckpoint();
+    if (!run.running || run.runId != runId) {
+      log.info("Dropping scan task of stale reindex run " + runId);
+      return;
+    }
+    FetchOptions options = FetchOptions.Builder.withLimit(PAGE_SIZE);
+    if (run.cursor != null) {
+      options.startCursor(Cursor.fromWebSafeString(run.cursor));
+    }
+    QueryResultList<Entity> page =
+        datastore.prepare(changedSince(run.from, run.runId)).asQueryResultList(options);
+
+    // Named after the page, so index tasks added by a retried scan are dropped.
+    List<TaskOptions> tasks = Lists.newArrayList();
+    int sliceSize = (int) ((page.size() + run.shards - 1) / run.shards);
+    for (int start = 0; start < page.size(); start += sliceSize) {
+      TaskOptions task =
+          TaskOptions.Builder.withUrl(TASK_PATH).param(STEP_PARAM, STEP_INDEX).taskName(
+              "reindex-" + runId + "-" + run.pages + "-" + start);
+      for (Entity entity : page.subList(start, Math.min(page.size(), start + sliceSize))) {
+        task.param(ID_PARAM, entity.getKey().getName());
+      }
+      tasks.add(task);
+    }
+    Queue queue = QueueFactory.getQueue(QUEUE);
+    if (!tasks.isEmpty()) {
+      try {
+        queue.add(tasks);
+      } catch (TaskAlreadyExistsException e) {
+        log.info("Index tasks already added: " + e.getTaskNames());
+      }
+    }
+
+    boolean done = page.size() < PAGE_SIZE;
+    Transaction tx = datastore.beginTransaction();
+    try {
+      Checkpoint current;
+      try {
+        current = fromEntity(datastore.get(tx, CHECKPOINT_KEY));
+      } catch (EntityNotFoundException e) {
+        return;
+      }
+      if (!current.running || current.runId != runId || current.pages != run.pages) {
+        log.info("Reindex run " + runId + " moved on; dropping duplicate scan");
+        return;
+      }
+      Checkpoint next =
+          done ? new Checkpoint(runId, runId, run.from, false, run.shards, run.pages + 1,
+              run.processed + page.size(), null) : new Checkpoint(runId, run.highWater, run.from,
+              true, run.shards, run.pages + 1, run.processed + page.size(), page.getCursor()
+                  .toWebSafeString());
+      datastore.put(tx, toEntity(next));
+      if (!done) {
+        queue.add(tx, scanTask(runId));
+      }
+      tx.commit();
+      if (done) {
+        log.info("Reindex run " + runId + " done: " + next.processed + " conversations");
+      }
+    } finally {
+      if (tx.isActive()) {
+        tx.rollback();
+      }
+    }
+  }
+
+  @SuppressWarnings("deprecation")
+  private static Query changedSince(long from, long to) {
+    return new Query(CONV_INDEX_KIND).addFilter(LAST_MODIFIED_PROPERTY,
+        Query.FilterOperator.GREATER_THAN, from).addFilter(LAST_MODIFIED_PROPERTY,
+        Query.FilterOperator.LESS_THAN_OR_EQUAL, to).addSort(LAST_MODIFIED_PROPERTY).setKeysOnly();
+  }
+
+  private static TaskOptions scanTask(long runId) {
+    return TaskOptions.Builder.withUrl(TASK_PATH).param(STEP_PARAM, STEP_SCAN).param(RUN_PARAM,
+        String.valueOf(runId));
+  }
+
+  private static Entity toEntity(Checkpoint c) {
+    Entity entity = new Entity(CHECKPOINT_KEY);
+    entity.setUnindexedProperty("runId", c.runId);
+    entity.setUnindexedProperty("highWater", c.highWater);
+    entity.setUnindexedProperty("from", c.from);
+    entity.setUnindexedProperty("running", c.running);
+    entity.setUnindexedProperty("shards", c.shards);
+    entity.setUnindexedProperty("pages", c.pages);
+    entity.setUnindexedProperty("processed", c.processed);
+    entity.setUnindexedProperty("cursor", c.cursor == null ? null : new Text(c.cursor));
+    return entity;
+  }
+
+  private static Checkpoint fromEntity(Entity e) {
+    Text cursor = (Text) e.getProperty("cursor");
+    return new Checkpoint((Long) e.getProperty("runId"), (Long) e.getProperty("highWater"),
+        (Long) e.getProperty("from"), (Boolean) e.getProperty("running"), (Long) e
+            .getProperty("shards"), (Long) e.getProperty("pages"), (Long) e
+            .getProperty("processed"), cursor == null ? null : cursor.getValue());
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.goodow.moon.web.server.ConfigName;
+import com.goodow.moon.web.server.ConfigName.Config;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.inject.Inject;
+import com.google.inject.servlet.RequestScoped;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Coalesces walkaround's post-commit tasks into one task per object and time window.
+ *
+ * Walkaround adds a task to {@link #QUEUES} for every commit. While a batcher is
+ * {@link #begin begun} on a thread, {@link PostCommitTaskInterceptor} hands those adds to
+ * {@link #schedule} instead of the task queue, and repeated tasks for the same object collapse
+ * into one. {@link PostCommitFlushFilter} adds what is left at the end of the request with one
+ * {@link Queue#add(Iterable)} per queue. Each task is named after its object and window and runs
+ * at the end of the window, so the task queue drops duplicates added by other requests and
+ * instances. The tasks keep their url and payload and are handled by walkaround as before.
+ */
+@RequestScoped
+public class PostCommitBatcher {
+  /** Queues walkaround adds its post-commit tasks to; see queue.xml. */
+  public static final Set<String> QUEUES = ImmutableSet.of("post-commit-conv", "post-commit-udw");
+  /** Maximum number of tasks per Queue.add call. */
+  static final int MAX_TASKS_PER_ADD = 100;
+
+  private static final Logger log = Logger.getLogger(PostCommitBatcher.class.getName());
+  private static final ThreadLocal<PostCommitBatcher> current =
+      new ThreadLocal<PostCommitBatcher>();
+
+  /** @return the batcher collecting the post-commit tasks of this thread, or null. */
+  @Nullable
+  static PostCommitBatcher current() {
+    return current.get();
+  }
+
+  /**
+   * Task names may only use [a-zA-Z0-9_-]. The payload of a post-commit task is the object id, so
+   * equal payloads mean the same object.
+   */
+  static String taskName(String url, byte[] payload, long windowEndMillis) {
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putBytes(url.getBytes(Charsets.UTF_8)).putByte((byte) 0).putBytes(payload);
+    return "pc-" + windowEndMillis + "-" + hasher.hash().toString().substring(0, 32);
+  }
+
+  private final long windowMillis;
+  /** Pending tasks by queue name, then by task name. */
+  private final Map<String, Map<String, TaskOptions>> pending = Maps.newLinkedHashMap();
+  private int scheduled;
+
+  @Inject
+  PostCommitBatcher(@Config(ConfigName.POST_COMMIT_BATCH_WINDOW_MILLIS) int windowMillis) {
+    this.windowMillis = Math.max(1, windowMillis);
+  }
+
+  long getWindowMillis() {
+    return windowMillis;
+  }
+
+  /** Starts collecting the post-commit tasks added by the calling thread. */
+  public void begin() {
+    current.set(this);
+  }
+
+  /**
+   * Schedules a POST of {@code payload} to {@code url} on {@code queueName} at the end of the
+   * window that {@code etaMillis} falls into, unless one is already scheduled for it.
+   */
+  void schedule(String queueName, String url, byte[] payload, String contentType,
+      long etaMillis) {
+    scheduled++;
+    long windowEnd = (etaMillis / windowMillis + 1) * windowMillis;
+    String name = taskName(url, payload, windowEnd);
+    Map<String, TaskOptions> tasks = pending.get(queueName);
+    if (tasks == null) {
+      tasks = Maps.newLinkedHashMap();
+      pending.put(queueName, tasks);
+    }
+    if (!tasks.containsKey(name)) {
+      tasks.put(name, TaskOptions.Builder.withUrl(url).method(TaskOptions.Method.POST).payload(
+          payload, contentType).taskName(name).etaMillis(windowEnd));
+    }
+  }
+
+  /** @return whether there are tasks waiting for {@link #flush}. */
+  public boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+   * Stops collecting and adds the pending tasks in bulk.
+   *
+   * @return the number of tasks added; tasks that another request already added are not counted
+   */
+  public int flush() {
+    current.remove();
+    int added = 0;
+    int existing = 0;
+    for (Map.Entry<String, Map<String, TaskOptions>> e : pending.entrySet()) {
+      Queue queue = QueueFactory.getQueue(e.getKey());
+      List<TaskOptions> tasks = Lists.newArrayList(e.getValue().values());
+      for (List<TaskOptions> batch : Lists.partition(tasks, MAX_TASKS_PER_ADD)) {
+        try {
+          added += queue.add(batch).size();
+        } catch (TaskAlreadyExistsException ex) {
+          // The other tasks of the batch were added.
+          existing += ex.getTaskNames().size();
+          added += batch.size() - ex.getTaskNames().size();
+        }
+      }
+    }
+    pending.clear();
+    if (scheduled > 0) {
+      log.info("Coalesced " + scheduled + " post-commit tasks into " + added + " new and "
+          + existing + " already added");
+    }
+    scheduled = 0;
+    return added;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+import java.io.IOException;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+/**
+ * Collects the post-commit tasks of each request in its {@link PostCommitBatcher} and adds them
+ * once the request is done.
+ */
+@Singleton
+public class PostCommitFlushFilter implements Filter {
+
+  private final Provider<PostCommitBatcher> batcher;
+
+  @Inject
+  public PostCommitFlushFilter(Provider<PostCommitBatcher> batcher) {
+    this.batcher = batcher;
+  }
+
+  @Override
+  public void destroy() {
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain filterChain)
+      throws IOException, ServletException {
+    PostCommitBatcher pending = batcher.get();
+    pending.begin();
+    try {
+      filterChain.doFilter(request, response);
+    } finally {
+      // Commits that happened before a failure still need their actions.
+      pending.flush();
+    }
+  }
+
+  @Override
+  public void init(FilterConfig filterConfig) throws ServletException {
+    PostCommitTaskInterceptor.install();
+  }
+}
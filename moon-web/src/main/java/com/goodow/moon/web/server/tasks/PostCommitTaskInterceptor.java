@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueAddRequest;
+import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueBulkAddRequest;
+import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueBulkAddResponse;
+import com.google.appengine.api.taskqueue.TaskQueuePb.TaskQueueServiceError;
+import com.google.apphosting.api.ApiProxy;
+import com.google.apphosting.api.ApiProxy.ApiConfig;
+import com.google.apphosting.api.ApiProxy.ApiProxyException;
+import com.google.apphosting.api.ApiProxy.Delegate;
+import com.google.apphosting.api.ApiProxy.Environment;
+import com.google.apphosting.api.ApiProxy.LogRecord;
+import com.google.common.util.concurrent.Futures;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Diverts the post-commit tasks walkaround adds into the {@link PostCommitBatcher} of the calling
+ * thread.
+ *
+ * Walkaround adds them through its own {@code Queue}, which moon cannot rebind, so they are
+ * caught where every {@code Queue.add} ends up: the task queue's BulkAdd call through
+ * {@link ApiProxy}. A call is diverted only if the calling thread has begun a batcher and all of
+ * its tasks are unnamed POSTs to one of {@link PostCommitBatcher#QUEUES}; it is then answered as
+ * if the tasks had been added. Everything else passes through unchanged.
+ *
+ * Tasks added inside a transaction are diverted as well and added after the request, whether or
+ * not the transaction committed. A task for a commit that was rolled back only runs the object's
+ * post-commit actions once more, which walkaround tolerates.
+ */
+class PostCommitTaskInterceptor implements Delegate<Environment> {
+  private static final Logger log = Logger.getLogger(PostCommitTaskInterceptor.class.getName());
+  private static final String TASKQUEUE_PACKAGE = "taskqueue";
+  private static final String BULK_ADD_METHOD = "BulkAdd";
+  private static final String DEFAULT_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
+  /**
+   * Wraps the current delegate unless it is already wrapped. Called once when the filters are set
+   * up, before {@code ApiCallCountingDelegate} wraps the delegate on the first request.
+   */
+  @SuppressWarnings("unchecked")
+  static synchronized void install() {
+    Delegate<Environment> current = ApiProxy.getDelegate();
+    if (current == null) {
+      log.warning("No API delegate; post-commit tasks will not be coalesced");
+    } else if (!(current instanceof PostCommitTaskInterceptor)) {
+      ApiProxy.setDelegate(new PostCommitTaskInterceptor(current));
+    }
+  }
+
+  private final Delegate<Environment> delegate;
+
+  private PostCommitTaskInterceptor(Delegate<Environment> delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public byte[] makeSyncCall(Environment environment, String packageName, String methodName,
+      byte[] request) throws ApiProxyException {
+    byte[] diverted = divert(packageName, methodName, request);
+    return diverted != null ? diverted
+        : delegate.makeSyncCall(environment, packageName, methodName, request);
+  }
+
+  @Override
+  public Future<byte[]> makeAsyncCall(Environment environment, String packageName,
+      String methodName, byte[] request, ApiConfig apiConfig) {
+    byte[] diverted = divert(packageName, methodName, request);
+    return diverted != null ? Futures.immediateFuture(diverted)
+        : delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+  }
+
+  @Override
+  public void log(Environment environment, LogRecord record) {
+    delegate.log(environment, record);
+  }
+
+  @Override
+  public void flushLogs(Environment environment) {
+    delegate.flushLogs(environment);
+  }
+
+  @Override
+  public List<Thread> getRequestThreads(Environment environment) {
+    return delegate.getRequestThreads(environment);
+  }
+
+  /** @return the response to a diverted call, or null if the call has to go through. */
+  @Nullable
+  private static byte[] divert(String packageName, String methodName, byte[] request) {
+    if (!TASKQUEUE_PACKAGE.equals(packageName) || !BULK_ADD_METHOD.equals(methodName)) {
+      return null;
+    }
+    PostCommitBatcher batcher = PostCommitBatcher.current();
+    if (batcher == null) {
+      return null;
+    }
+    TaskQueueBulkAddRequest bulkAdd = new TaskQueueBulkAddRequest();
+    if (!bulkAdd.parseFrom(request) || bulkAdd.addRequestSize() == 0) {
+      return null;
+    }
+    for (TaskQueueAddRequest add : bulkAdd.addRequests()) {
+      if (!PostCommitBatcher.QUEUES.contains(add.getQueueName()) || !add.getTaskName().isEmpty()
+          || add.getMethod() != TaskQueueAddRequest.RequestMethod.POST.getValue()) {
+        return null;
+      }
+    }
+    TaskQueueBulkAddResponse response = new TaskQueueBulkAddResponse();
+    for (TaskQueueAddRequest add : bulkAdd.addRequests()) {
+      batcher.schedule(add.getQueueName(), add.getUrl(), add.getBodyAsBytes(), contentType(add),
+          add.getEtaUsec() / 1000);
+      response.addTaskResult().setResult(TaskQueueServiceError.ErrorCode.OK.getValue());
+    }
+    return response.toByteArray();
+  }
+
+  private static String contentType(TaskQueueAddRequest add) {
+    for (TaskQueueAddRequest.Header header : add.headers()) {
+      if (header.getKey().equalsIgnoreCase("Content-Type")) {
+        return header.getValue();
+      }
+    }
+    return DEFAULT_CONTENT_TYPE;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.goodow.moon.web.server.auth.UserContext;
+
+import com.google.inject.Inject;
+import com.google.walkaround.util.server.auth.InvalidSecurityTokenException;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.auth.XsrfHelper;
+import com.google.walkaround.wave.server.auth.XsrfHelper.XsrfTokenExpiredException;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Shows the progress of the conversation reindexer (GET) and starts or resumes a run (POST with
+ * {@code token}, and {@code full=true} to reindex every conversation).
+ */
+public class ReindexHandler extends AbstractHandler {
+
+  private static final String XSRF_ACTION = "admin reindex ";
+
+  @Inject ConvReindexer reindexer;
+  @Inject UserContext userContext;
+  @Inject XsrfHelper xsrfHelper;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    writeCheckpoint(resp, reindexer.getCheckpoint());
+  }
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    try {
+      xsrfHelper.verify(xsrfAction(), requireParameter(req, "token"));
+    } catch (XsrfTokenExpiredException e) {
+      throw new BadRequestException("XSRF token expired");
+    } catch (InvalidSecurityTokenException e) {
+      throw new BadRequestException("Bad XSRF token");
+    }
+    writeCheckpoint(resp, reindexer.start("true".equals(req.getParameter("full"))));
+  }
+
+  private void writeCheckpoint(HttpServletResponse resp, ConvReindexer.Checkpoint checkpoint)
+      throws IOException {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("runId", checkpoint.runId);
+      json.put("running", checkpoint.running);
+      json.put("highWater", checkpoint.highWater);
+      json.put("from", checkpoint.from);
+      json.put("shards", checkpoint.shards);
+      json.put("pages", checkpoint.pages);
+      json.put("processed", checkpoint.processed);
+      json.put("token", xsrfHelper.createToken(xsrfAction()));
+    } catch (JSONException e) {
+      throw new RuntimeException("Bad JSON: " + json, e);
+    }
+    resp.setStatus(200);
+    resp.setContentType("application/json");
+    resp.setCharacterEncoding("UTF-8");
+    resp.getWriter().print(json.toString());
+  }
+
+  private String xsrfAction() {
+    return XSRF_ACTION + userContext.getParticipantId().getAddress();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 Goodow.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.goodow.moon.web.server.tasks;
+
+import com.google.inject.Inject;
+import com.google.walkaround.slob.shared.SlobId;
+import com.google.walkaround.util.server.RetryHelper.PermanentFailure;
+import com.google.walkaround.util.server.RetryHelper.RetryableFailure;
+import com.google.walkaround.util.server.servlet.AbstractHandler;
+import com.google.walkaround.util.server.servlet.BadRequestException;
+import com.google.walkaround.wave.server.index.WaveIndexer;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs the scan and index tasks of {@link ConvReindexer} on the reindex queue. A retryable
+ * failure fails the task so that the queue retries it.
+ */
+public class ReindexTaskHandler extends AbstractHandler {
+
+  private static final Logger log = Logger.getLogger(ReindexTaskHandler.class.getName());
+
+  @Inject ConvReindexer reindexer;
+  @Inject WaveIndexer indexer;
+
+  @Override
+  public void doPost(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    String step = requireParameter(req, ConvReindexer.STEP_PARAM);
+    if (ConvReindexer.STEP_SCAN.equals(step)) {
+      long runId;
+      try {
+        runId = Long.parseLong(requireParameter(req, ConvReindexer.RUN_PARAM));
+      } catch (NumberFormatException e) {
+        throw new BadRequestException("Bad run id");
+      }
+      reindexer.scan(runId);
+    } else if (ConvReindexer.STEP_INDEX.equals(step)) {
+      String[] ids = req.getParameterValues(ConvReindexer.ID_PARAM);
+      for (String id : ids == null ? new String[0] : ids) {
+        try {
+          indexer.index(new SlobId(id));
+        } catch (RetryableFailure e) {
+          throw new IOException("Failed to reindex " + id, e);
+        } catch (PermanentFailure e) {
+          log.log(Level.SEVERE, "Skipping conversation " + id + " that cannot be reindexed", e);
+        }
+      }
+    } else {
+      throw new BadRequestException("Bad step: " + step);
+    }
+    resp.setStatus(200);
+  }
+}
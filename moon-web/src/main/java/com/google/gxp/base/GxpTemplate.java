@@ -18,7 +18,11 @@ import com.google.common.base.Charsets;
 
 import java.io.IOException;
 import java.util.Locale;
+import java.util.MissingResourceException;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This is the superclass of all GXP templates. Contains helper classes and functions.
@@ -31,6 +35,23 @@ import java.util.ResourceBundle;
  * where '...' is the list of parameters defined in the GXP source.
  */
 public class GxpTemplate {
+  /**
+   * Decoded and parsed messages, keyed by (source, locale of the bundle that holds them, id). Only
+   * locales that have a bundle end up in the key, so the cache cannot outgrow the bundles.
+   */
+  private static final ConcurrentMap<MessageKey, Message> messageCache =
+      new ConcurrentHashMap<MessageKey, Message>();
+  /**
+   * Locale of the bundle that {@link ResourceBundle#getBundle} picks, keyed by (source, requested
+   * locale). Requested locales come from clients, so at most {@link #MAX_RESOLVED_LOCALES} are
+   * remembered; others are resolved on every lookup.
+   */
+  private static final ConcurrentMap<BundleKey, Locale> resolvedLocales =
+      new ConcurrentHashMap<BundleKey, Locale>();
+  private static final int MAX_RESOLVED_LOCALES = 256;
+  private static final AtomicLong messageCacheHits = new AtomicLong();
+  private static final AtomicLong messageCacheMisses = new AtomicLong();
+
   /**
    * @param source message source to use
    * @param locale the Locale to translate this message to
@@ -45,9 +66,131 @@ public class GxpTemplate {
   }
 
   protected static Message getRawMessage(String source, Locale locale, long id) {
-    ResourceBundle bundle = ResourceBundle.getBundle(source, locale);
-    return Message.getInstance(new String(bundle.getString(String.valueOf(id)).getBytes(
-        Charsets.ISO_8859_1), Charsets.UTF_8));
+    BundleKey bundleKey = new BundleKey(source, locale);
+    Locale resolved = resolvedLocales.get(bundleKey);
+    ResourceBundle bundle = null;
+    if (resolved == null) {
+      bundle = ResourceBundle.getBundle(source, locale);
+      resolved = bundle.getLocale();
+      if (resolvedLocales.size() < MAX_RESOLVED_LOCALES) {
+        resolvedLocales.putIfAbsent(bundleKey, resolved);
+      }
+    }
+    MessageKey key = new MessageKey(source, resolved, id);
+    Message message = messageCache.get(key);
+    if (message != null) {
+      messageCacheHits.incrementAndGet();
+      return message;
+    }
+    messageCacheMisses.incrementAndGet();
+    if (bundle == null) {
+      bundle = ResourceBundle.getBundle(source, locale);
+    }
+    message = loadMessage(bundle, String.valueOf(id));
+    Message existing = messageCache.putIfAbsent(key, message);
+    return existing == null ? message : existing;
+  }
+
+  /**
+   * Decodes and parses every message of {@code source} for each of {@code locales} ahead of time,
+   * so that the first page rendered in a locale does not pay for it.
+   *
+   * @return the number of messages added to the cache.
+   */
+  public static int warmMessageCache(String source, Locale... locales) {
+    int added = 0;
+    for (Locale locale : locales) {
+      ResourceBundle bundle;
+      try {
+        bundle = ResourceBundle.getBundle(source, locale);
+      } catch (MissingResourceException e) {
+        continue;
+      }
+      resolvedLocales.putIfAbsent(new BundleKey(source, locale), bundle.getLocale());
+      for (String id : bundle.keySet()) {
+        long numericId;
+        try {
+          numericId = Long.parseLong(id);
+        } catch (NumberFormatException e) {
+          continue;
+        }
+        if (messageCache.putIfAbsent(new MessageKey(source, bundle.getLocale(), numericId),
+            loadMessage(bundle, id)) == null) {
+          added++;
+        }
+      }
+    }
+    return added;
+  }
+
+  public static long getMessageCacheHits() {
+    return messageCacheHits.get();
+  }
+
+  public static long getMessageCacheMisses() {
+    return messageCacheMisses.get();
+  }
+
+  public static int getMessageCacheSize() {
+    return messageCache.size();
+  }
+
+  private static Message loadMessage(ResourceBundle bundle, String id) {
+    // Bundles are read as ISO-8859-1, but the GXP compiler writes them in UTF-8.
+    return Message.getInstance(new String(bundle.getString(id).getBytes(Charsets.ISO_8859_1),
+        Charsets.UTF_8));
+  }
+
+  /** Identifies a requested bundle in {@link #resolvedLocales}. */
+  private static final class BundleKey {
+    private final String source;
+    private final Locale locale;
+
+    BundleKey(String source, Locale locale) {
+      this.source = source;
+      this.locale = locale;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof BundleKey)) {
+        return false;
+      }
+      BundleKey other = (BundleKey) o;
+      return source.equals(other.source) && locale.equals(other.locale);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * source.hashCode() + locale.hashCode();
+    }
+  }
+
+  /** Identifies a message in {@link #messageCache}. */
+  private static final class MessageKey {
+    private final String source;
+    private final Locale locale;
+    private final long id;
+
+    MessageKey(String source, Locale locale, long id) {
+      this.source = source;
+      this.locale = locale;
+      this.id = id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof MessageKey)) {
+        return false;
+      }
+      MessageKey other = (MessageKey) o;
+      return id == other.id && source.equals(other.source) && locale.equals(other.locale);
+    }
+
+    @Override
+    public int hashCode() {
+      return (31 * source.hashCode() + locale.hashCode()) * 31 + (int) (id ^ (id >>> 32));
+    }
   }
 
   /**